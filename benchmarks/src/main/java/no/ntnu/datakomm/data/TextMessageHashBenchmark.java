@@ -0,0 +1,150 @@
+package no.ntnu.datakomm.data;
+
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TextMessage in a large HashSet, as used for de-duplication and indexing:
+ * 200 000 messages from 300 users, made of common chat words. "cached" is
+ * the current TextMessage with its hash computed once; "legacy" is a copy of
+ * the old hash, computed again on every call. The number of distinct hash
+ * values and of occupied HashMap buckets is printed for both before the run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMessageHashBenchmark {
+
+    private static final int MESSAGES = 200000;
+    private static final int USERS = 300;
+    private static final String[] WORDS = {
+        "the", "build", "is", "green", "red", "again", "deploy", "now",
+        "can", "you", "review", "my", "change", "lunch", "meeting", "late",
+        "ok", "thanks", "yes", "no", "server", "down", "up", "test", "fix"
+    };
+
+    @Param({"cached", "legacy"})
+    public String hash;
+
+    private Set<Object> set;
+    // Equal to the messages in the set, but other instances
+    private Object[] hits;
+    // Not in the set
+    private Object[] misses;
+    private int next;
+
+    /**
+     * The hashCode() TextMessage had before, with field-accurate equals() so
+     * that only the hash differs.
+     */
+    private static final class LegacyMessage {
+
+        final String sender;
+        final boolean priv;
+        final String text;
+
+        LegacyMessage(TextMessage m) {
+            sender = m.getSender();
+            priv = m.isPrivate();
+            text = m.getText();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LegacyMessage)) {
+                return false;
+            }
+            LegacyMessage other = (LegacyMessage) o;
+            return priv == other.priv && Objects.equals(sender, other.sender)
+                    && Objects.equals(text, other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 3;
+            hash = 71 * hash + Objects.hashCode(this.sender);
+            hash = 71 * hash + (this.priv ? 1 : 0);
+            hash = 71 * hash + Objects.hashCode(this.text);
+            return hash;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        set = new HashSet<>();
+        hits = new Object[MESSAGES];
+        misses = new Object[MESSAGES];
+        Set<Integer> hashes = new HashSet<>();
+        Set<Integer> buckets = new HashSet<>();
+        int i = 0;
+        while (i < MESSAGES) {
+            TextMessage m = randomMessage(random);
+            Object key = wrap(m);
+            if (set.add(key)) {
+                hits[i] = wrap(copy(m));
+                int h = key.hashCode();
+                hashes.add(h);
+                // Bucket index the way HashMap computes it, for a table with
+                // room for all the messages
+                buckets.add((h ^ (h >>> 16)) & ((1 << 18) - 1));
+                ++i;
+            }
+        }
+        i = 0;
+        while (i < MESSAGES) {
+            Object key = wrap(randomMessage(random));
+            if (!set.contains(key)) {
+                misses[i++] = key;
+            }
+        }
+        System.out.printf("%n%s: %d messages, %d distinct hashes "
+                + "(%.2f%% collide), %d of %d buckets used%n", hash,
+                MESSAGES, hashes.size(),
+                100.0 * (MESSAGES - hashes.size()) / MESSAGES,
+                buckets.size(), 1 << 18);
+    }
+
+    private static TextMessage randomMessage(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 2 + random.nextInt(6);
+        for (int w = 0; w < words; ++w) {
+            if (w > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return new TextMessage("user" + random.nextInt(USERS),
+                random.nextInt(10) == 0, text.toString());
+    }
+
+    private static TextMessage copy(TextMessage m) {
+        return new TextMessage(new String(m.getSender()), m.isPrivate(),
+                new String(m.getText()));
+    }
+
+    private Object wrap(TextMessage m) {
+        return hash.equals("cached") ? m : new LegacyMessage(m);
+    }
+
+    @Benchmark
+    public boolean lookupHit() {
+        Object key = hits[next];
+        next = (next + 1) % MESSAGES;
+        return set.contains(key);
+    }
+
+    @Benchmark
+    public boolean lookupMiss() {
+        Object key = misses[next];
+        next = (next + 1) % MESSAGES;
+        return set.contains(key);
+    }
+}
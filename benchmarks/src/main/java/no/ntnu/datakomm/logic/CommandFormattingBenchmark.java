@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building the command line in sendTextMessage: the original three string
+ * concatenations against TCPClient.formatTextMessage, and the formatted line
+ * encoded into the OutboundBuffer, which is what happens on the sending
+ * thread for every message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandFormattingBenchmark {
+
+    @Param({"msg", "privmsg"})
+    public String command;
+
+    private String recipient;
+    private final String message
+            = "can you review my change when you have time";
+    private OutboundBuffer outbound;
+
+    /**
+     * Throws away the bytes.
+     */
+    private static class NullTransport implements Transport {
+
+        @Override
+        public void startReading() {
+        }
+
+        @Override
+        public boolean write(ByteBuffer data) {
+            data.position(data.limit());
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        recipient = "privmsg".equals(command) ? "carol" : null;
+        // Large batches, so that the benchmark measures the encoding and not
+        // the transport
+        outbound = new OutboundBuffer(new NullTransport(),
+                FlushPolicy.atBytes(16384));
+    }
+
+    @TearDown
+    public void tearDown() {
+        outbound.close();
+    }
+
+    /**
+     * The original code: cmd + " ", then recipient + " ", then the message.
+     */
+    @Benchmark
+    public String concatenation() {
+        String cmdToSend = command + " ";
+        if (recipient != null && cmdToSend.length() > 0) {
+            cmdToSend += recipient + " ";
+        }
+        cmdToSend += message;
+        return cmdToSend;
+    }
+
+    @Benchmark
+    public String formatTextMessage() {
+        return TCPClient.formatTextMessage(command, recipient, message);
+    }
+
+    /**
+     * Formatting and encoding the line into the outgoing buffer.
+     */
+    @Benchmark
+    public boolean formatAndEncode() {
+        return outbound.append(
+                TCPClient.formatTextMessage(command, recipient, message));
+    }
+}
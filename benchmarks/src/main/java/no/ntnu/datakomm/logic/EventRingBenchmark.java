@@ -0,0 +1,94 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Events per second through the ChatEventBus ring from the reader thread
+ * (the benchmark thread) to one listener thread, for each wait strategy. The
+ * handoff latency percentiles seen by the listener, and the events it missed
+ * because the publisher got a whole ring ahead, are printed at the end of
+ * each run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventRingBenchmark {
+
+    @Param({"BUSY_SPIN", "YIELD", "PARK"})
+    public WaitStrategy waitStrategy;
+
+    private ChatEventBus bus;
+    private final TextMessage message
+            = new TextMessage("alice", false, "the build is green again");
+
+    /**
+     * Counts the messages, ignores everything else.
+     */
+    private static class CountingListener implements ChatListener {
+
+        volatile long received;
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            ++received;
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+    }
+
+    private final CountingListener listener = new CountingListener();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bus = new ChatEventBus();
+        bus.subscribe(listener, waitStrategy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        LatencyHistogram handoff = bus.getHandoffLatency(listener);
+        System.out.printf("%n%s handoff: p50=%dns p99=%dns p99.9=%dns "
+                + "(%d events, %d dropped)%n", waitStrategy,
+                handoff.getPercentile(50), handoff.getPercentile(99),
+                handoff.getPercentile(99.9), handoff.getCount(),
+                bus.getDroppedCount(listener));
+        bus.unsubscribe(listener);
+    }
+
+    /**
+     * Publish one received message.
+     */
+    @Benchmark
+    public void publish() {
+        bus.onMessageReceived(message);
+    }
+}
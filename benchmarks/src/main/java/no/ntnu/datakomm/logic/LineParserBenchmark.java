@@ -0,0 +1,131 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting received bytes into command and parameters: the old
+ * BufferedReader + substring path against LineParser, which works in place
+ * in the read buffer. Run with "-prof gc" to see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParserBenchmark {
+
+    // Lines the server typically sends, repeated to fill one read buffer
+    private static final String[] TRAFFIC = {
+        "msg alice did anyone look at the deploy script yet?",
+        "msg bob yes, it is running now",
+        "msgok 14",
+        "privmsg carol can you review my change when you have time",
+        "users alice bob carol dave erin frank grace heidi ivan judy",
+        "msg dave the build is green again",
+        "msgerr incorrect recipient",
+        "loginok"
+    };
+
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private final LineParser parser = new LineParser();
+    private Blackhole blackhole;
+
+    // Consumes the parsed lines without creating any strings, like the
+    // dispatch code does for commands it only needs to recognize
+    private final TransportListener consumer = new TransportListener() {
+        @Override
+        public void onLineReceived(CommandLine line) {
+            blackhole.consume(line.commandLength());
+            blackhole.consume(line.commandByte(0));
+            blackhole.consume(line.paramsLength());
+        }
+
+        @Override
+        public void onReadComplete() {
+        }
+
+        @Override
+        public void onTransportClosed(IOException cause) {
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole bh) {
+        blackhole = bh;
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 32 * 1024) {
+            for (String line : TRAFFIC) {
+                sb.append(line).append('\n');
+            }
+        }
+        bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * The original path: readLine(), indexOf(' ') and two substrings.
+     */
+    @Benchmark
+    public void bufferedReaderSubstring(Blackhole bh) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int spacePos = line.indexOf(' ');
+            String cmd;
+            String params;
+            if (spacePos >= 0) {
+                cmd = line.substring(0, spacePos);
+                params = line.substring(spacePos + 1);
+            } else {
+                cmd = line;
+                params = "";
+            }
+            bh.consume(cmd);
+            bh.consume(params);
+        }
+    }
+
+    /**
+     * LineParser scanning the buffer in place.
+     */
+    @Benchmark
+    public void lineParserInPlace() {
+        buffer.clear();
+        parser.parse(buffer, consumer);
+    }
+
+    /**
+     * LineParser when the listener also needs the parameters as a String,
+     * the worst case for the in-place parser.
+     */
+    @Benchmark
+    public void lineParserWithParams(Blackhole bh) {
+        buffer.clear();
+        parser.parse(buffer, new TransportListener() {
+            @Override
+            public void onLineReceived(CommandLine line) {
+                bh.consume(line.commandLength());
+                bh.consume(line.params());
+            }
+
+            @Override
+            public void onReadComplete() {
+            }
+
+            @Override
+            public void onTransportClosed(IOException cause) {
+            }
+        });
+    }
+}
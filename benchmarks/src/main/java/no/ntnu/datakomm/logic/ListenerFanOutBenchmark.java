@@ -0,0 +1,109 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One read of received messages through the client: LineParser, the command
+ * dispatch in parseIncomingCommands, onMsgReceived, and the delivery of the
+ * batch to a growing number of listeners. Uses the same handler the
+ * transport feeds, without a socket. The score is per received line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanOutBenchmark {
+
+    private static final int LINES = 500;
+    private static final int USERS = 50;
+
+    @Param({"1", "4", "16"})
+    public int listenerCount;
+
+    private final LineParser parser = new LineParser();
+    private ByteBuffer buffer;
+    private TransportListener handler;
+
+    /**
+     * Looks at every message of the batch, like the GUI does.
+     */
+    private static class ConsumingListener implements ChatListener {
+
+        private final Blackhole blackhole;
+
+        ConsumingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onMessagesReceived(List<TextMessage> messages) {
+            for (TextMessage message : messages) {
+                blackhole.consume(message.getSender());
+                blackhole.consume(message.getText());
+            }
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            blackhole.consume(message);
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        TCPClient client = new TCPClient();
+        for (int i = 0; i < listenerCount; ++i) {
+            client.addListener(new ConsumingListener(blackhole));
+        }
+        handler = client.createReplyHandler();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; ++i) {
+            sb.append(i % 10 == 0 ? "privmsg user" : "msg user")
+                    .append(i % USERS).append(" message number ").append(i)
+                    .append(" of the read\n");
+        }
+        buffer = ByteBuffer.wrap(sb.toString().getBytes(
+                StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readAndDispatch() {
+        buffer.clear();
+        parser.parse(buffer, handler);
+        handler.onReadComplete();
+    }
+}
@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal chat server for the benchmarks, in the same process. Answers
+ * login with loginok and every message with msgok, nothing else, so that a
+ * round trip measures the client and the loopback socket only.
+ */
+class LoopbackServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     *
+     * @throws IOException when the socket cannot be opened
+     */
+    LoopbackServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50,
+                InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptConnections,
+                "loopback-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(socket), "loopback-client");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            byte[] loginOk = "loginok\n".getBytes(StandardCharsets.UTF_8);
+            byte[] msgOk = "msgok 1\n".getBytes(StandardCharsets.UTF_8);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("login ")) {
+                    out.write(loginOk);
+                } else if (line.startsWith("msg ")
+                        || line.startsWith("privmsg ")) {
+                    out.write(msgOk);
+                }
+            }
+        } catch (IOException e) {
+            // Client gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
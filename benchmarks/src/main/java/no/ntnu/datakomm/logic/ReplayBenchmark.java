@@ -0,0 +1,160 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Replays a traffic capture through the client as fast as possible: parsing,
+ * dispatch and delivery to a listener, on the same lines every run. Give a
+ * capture recorded with -Dchat.capture with "-p capture=file"; without one,
+ * a capture of 100 000 synthetic lines is recorded at setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+
+    private static final String[] TEXTS = {
+        "did anyone look at the deploy script yet?",
+        "yes, it is running now",
+        "can you review my change when you have time",
+        "the build is green again"
+    };
+
+    @Param({""})
+    public String capture;
+
+    private WireReplay replay;
+    private TCPClient client;
+
+    /**
+     * Looks at every message, like the GUI does.
+     */
+    private static class ConsumingListener implements ChatListener {
+
+        private final Blackhole blackhole;
+
+        ConsumingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onMessagesReceived(List<TextMessage> messages) {
+            for (TextMessage message : messages) {
+                blackhole.consume(message.getSender());
+                blackhole.consume(message.getText());
+            }
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            blackhole.consume(message);
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            blackhole.consume(usernames);
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        Path file;
+        if (capture.isEmpty()) {
+            file = Files.createTempFile("replay", ".cap");
+            file.toFile().deleteOnExit();
+            recordSyntheticTraffic(file);
+        } else {
+            file = Paths.get(capture);
+        }
+        replay = new WireReplay(file);
+        client = new TCPClient();
+        client.addListener(new ConsumingListener(blackhole));
+    }
+
+    /**
+     * Record reads of 50 lines from 200 users, with a user list now and
+     * then.
+     */
+    private static void recordSyntheticTraffic(Path file) throws IOException {
+        Random random = new Random(42);
+        LineParser parser = new LineParser();
+        try (WireRecorder recorder = new WireRecorder(file)) {
+            TransportListener tap = recorder.tap(new TransportListener() {
+                @Override
+                public void onLineReceived(CommandLine line) {
+                }
+
+                @Override
+                public void onReadComplete() {
+                }
+
+                @Override
+                public void onTransportClosed(IOException cause) {
+                }
+            });
+            StringBuilder read = new StringBuilder();
+            for (int r = 0; r < 2000; ++r) {
+                read.setLength(0);
+                for (int i = 0; i < 50; ++i) {
+                    if (i == 0 && r % 100 == 0) {
+                        read.append("users");
+                        for (int u = 0; u < 200; ++u) {
+                            read.append(" user").append(u);
+                        }
+                    } else {
+                        read.append(i % 10 == 0 ? "privmsg user" : "msg user")
+                                .append(random.nextInt(200)).append(' ')
+                                .append(TEXTS[random.nextInt(TEXTS.length)]);
+                    }
+                    read.append('\n');
+                }
+                parser.parse(ByteBuffer.wrap(read.toString().getBytes(
+                        StandardCharsets.UTF_8)), tap);
+                tap.onReadComplete();
+            }
+        }
+    }
+
+    /**
+     * The whole capture; the score is captures per second.
+     */
+    @Benchmark
+    public long replayCapture() {
+        return replay.replay(client, WireReplay.MAX_SPEED);
+    }
+}
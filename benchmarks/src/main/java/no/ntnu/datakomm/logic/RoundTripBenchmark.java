@@ -0,0 +1,76 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.data.MessageAck;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time from sending a message until the server's msgok reply completes its
+ * future, against a LoopbackServer in the same process. Covers the outbound
+ * queue, the writer, the socket, the reading thread, parsing and the ack
+ * correlation. Sample mode, so that the percentiles are reported, not only
+ * the mean.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final int WINDOW = 32;
+
+    @Param({"NIO", "BLOCKING"})
+    public TransportMode transportMode;
+
+    private LoopbackServer server;
+    private TCPClient client;
+    private final CompletableFuture<?>[] window
+            = new CompletableFuture<?>[WINDOW];
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        client = new TCPClient(transportMode);
+        if (!client.connect("localhost", server.getPort())) {
+            throw new IllegalStateException("Could not connect");
+        }
+        client.startListenThread();
+        client.tryLogin("bench");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.disconnect();
+        server.close();
+    }
+
+    /**
+     * One message, then wait for its ack.
+     */
+    @Benchmark
+    public MessageAck sendAndAck() throws Exception {
+        return client.sendPublicMessageAsync("hello from the benchmark")
+                .get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * WINDOW messages without waiting, then wait for all the acks. Shows
+     * what batching the writes and reads gains. The score is per message.
+     */
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public MessageAck pipelined() throws Exception {
+        for (int i = 0; i < WINDOW; ++i) {
+            window[i] = client.sendPublicMessageAsync(
+                    "hello from the benchmark");
+        }
+        MessageAck last = null;
+        for (CompletableFuture<?> ack : window) {
+            last = (MessageAck) ack.get(5, TimeUnit.SECONDS);
+        }
+        return last;
+    }
+}
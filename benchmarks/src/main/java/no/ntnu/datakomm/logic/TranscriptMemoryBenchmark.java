@@ -0,0 +1,122 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * Retained heap of a transcript of one million received messages, with the
+ * sender names decoded for every message (as before) and taken from the
+ * NameInterner. The messages come from 300 users.
+ *
+ * Not a JMH benchmark, heap size is not something JMH measures. Run the main
+ * method with a fixed heap:
+ *
+ * java -Xms2g -Xmx2g -cp target/benchmarks.jar
+ * no.ntnu.datakomm.logic.TranscriptMemoryBenchmark
+ */
+public class TranscriptMemoryBenchmark {
+
+    private static final int MESSAGES = 1000000;
+    private static final int USERS = 300;
+
+    private static final String[] TEXTS = {
+        "did anyone look at the deploy script yet?",
+        "yes, it is running now",
+        "can you review my change when you have time",
+        "the build is green again",
+        "lunch?",
+        "I will be ten minutes late for the meeting"
+    };
+
+    public static void main(String[] args) {
+        // Build both once before measuring, so that class loading and JIT
+        // do not count
+        buildTranscript(false, 10000);
+        buildTranscript(true, 10000);
+
+        long baseline = usedHeap();
+        List<TextMessage> plain = buildTranscript(false, MESSAGES);
+        long plainBytes = usedHeap() - baseline;
+        report("decoded senders", plain, plainBytes);
+        plain = null;
+
+        baseline = usedHeap();
+        List<TextMessage> interned = buildTranscript(true, MESSAGES);
+        long internedBytes = usedHeap() - baseline;
+        report("interned senders", interned, internedBytes);
+
+        System.out.printf("Saved %.1f MB (%.0f%%)%n",
+                (plainBytes - internedBytes) / 1e6,
+                100.0 * (plainBytes - internedBytes) / plainBytes);
+    }
+
+    /**
+     * Parse "msg sender text" lines and keep a TextMessage for each, like
+     * TCPClient does.
+     */
+    private static List<TextMessage> buildTranscript(boolean intern,
+            int count) {
+        List<TextMessage> transcript = new ArrayList<>(count);
+        NameInterner names = new NameInterner(4096);
+        TransportListener collector = new TransportListener() {
+            @Override
+            public void onLineReceived(CommandLine line) {
+                int space = line.indexOfSpace(0);
+                String sender = intern ? names.intern(line, 0, space)
+                        : line.paramsRange(0, space);
+                transcript.add(new TextMessage(sender, false,
+                        line.paramsFrom(space + 1)));
+            }
+
+            @Override
+            public void onReadComplete() {
+            }
+
+            @Override
+            public void onTransportClosed(IOException cause) {
+            }
+        };
+
+        Random random = new Random(42);
+        LineParser parser = new LineParser();
+        StringBuilder chunk = new StringBuilder();
+        int produced = 0;
+        while (produced < count) {
+            chunk.setLength(0);
+            for (int i = 0; i < 500 && produced < count; ++i, ++produced) {
+                chunk.append("msg user").append(random.nextInt(USERS))
+                        .append(' ').append(TEXTS[random.nextInt(TEXTS.length)])
+                        .append('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(
+                    chunk.toString().getBytes(StandardCharsets.UTF_8));
+            parser.parse(buffer, collector);
+        }
+        return transcript;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, List<TextMessage> transcript,
+            long bytes) {
+        System.out.printf("%-17s %d messages, retained %.1f MB, "
+                + "%.1f bytes per message%n", name, transcript.size(),
+                bytes / 1e6, (double) bytes / transcript.size());
+    }
+}
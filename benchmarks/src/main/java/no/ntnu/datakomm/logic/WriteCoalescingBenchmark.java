@@ -0,0 +1,100 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Bursts of chat messages through the OutboundBuffer with different flush
+ * policies. The transport only counts writes, each of which would be one
+ * system call on a real socket. The "writes" and "lines" counters are
+ * reported next to the throughput, and the syscalls per message are printed
+ * at the end of each run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteCoalescingBenchmark {
+
+    private static final int BURST = 50;
+
+    @Param({"immediate", "after100us", "at4096bytes"})
+    public String policy;
+
+    private OutboundBuffer outbound;
+    private final CountingTransport transport = new CountingTransport();
+    private final String[] burst = new String[BURST];
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long writes;
+        public long lines;
+    }
+
+    /**
+     * Throws away the bytes, counts the writes.
+     */
+    private static class CountingTransport implements Transport {
+
+        long writes;
+
+        @Override
+        public void startReading() {
+        }
+
+        @Override
+        public boolean write(ByteBuffer data) {
+            ++writes;
+            data.position(data.limit());
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        FlushPolicy flushPolicy;
+        switch (policy) {
+            case "after100us":
+                flushPolicy = FlushPolicy.afterMicros(100);
+                break;
+            case "at4096bytes":
+                flushPolicy = FlushPolicy.atBytes(4096);
+                break;
+            default:
+                flushPolicy = FlushPolicy.immediate();
+        }
+        outbound = new OutboundBuffer(transport, flushPolicy);
+        for (int i = 0; i < BURST; ++i) {
+            burst[i] = (i % 5 == 0 ? "privmsg bob " : "msg ")
+                    + "message number " + i + " of the burst from the bot";
+        }
+    }
+
+    @TearDown
+    public void report() {
+        outbound.flush();
+        System.out.printf("%n%s: %.4f syscalls per message%n", policy,
+                (double) outbound.getWriteCount() / outbound.getLineCount());
+    }
+
+    /**
+     * One burst of messages sent back-to-back by a bot.
+     */
+    @Benchmark
+    public void burst(Counters counters) {
+        long writesBefore = outbound.getWriteCount();
+        for (String line : burst) {
+            outbound.append(line);
+        }
+        counters.writes += outbound.getWriteCount() - writesBefore;
+        counters.lines += BURST;
+    }
+}
@@ -0,0 +1,231 @@
+package no.ntnu.datakomm.loadgen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import no.ntnu.datakomm.facade.ChatClientFacade;
+import no.ntnu.datakomm.logic.TCPClient;
+import no.ntnu.datakomm.logic.TransportMode;
+import no.ntnu.datakomm.server.ChatServer;
+
+/**
+ * Headless load test: logs in a number of simulated users and sends a mix of
+ * public messages, private messages and user list requests at a fixed rate,
+ * then prints the throughput and the latency percentiles.
+ *
+ * The requests are sent on a fixed schedule, whatever the server's replies
+ * do, and latencies are measured from the time a request was scheduled, not
+ * from when it could actually be sent. A load generator that waits for
+ * replies, or measures from the actual send, hides a stalled server: the
+ * requests it did not send meanwhile are never measured (coordinated
+ * omission). The uncorrected latency is printed as well, to show the
+ * difference.
+ *
+ * Without --host an embedded ChatServer on a free port is used.
+ *
+ * Run: java -cp target/loadtest.jar
+ * no.ntnu.datakomm.loadgen.LoadGenerator [--host h] [--port p] [--users n]
+ * [--rate ops/s] [--duration s] [--warmup s] [--private %] [--userlist %]
+ * [--transport NIO|BLOCKING]
+ */
+public class LoadGenerator {
+
+    private String host = null;
+    private int port = ChatServer.DEFAULT_PORT;
+    private int userCount = 100;
+    private double rate = 1000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int privatePercent = 10;
+    private int userListPercent = 1;
+    private TransportMode transportMode = TransportMode.NIO;
+
+    private final List<SimulatedUser> users = new ArrayList<>();
+    private final LoadResults results = new LoadResults();
+    private final Random random = new Random();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        generator.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--users":
+                    userCount = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--private":
+                    privatePercent = Integer.parseInt(value);
+                    break;
+                case "--userlist":
+                    userListPercent = Integer.parseInt(value);
+                    break;
+                case "--transport":
+                    transportMode = TransportMode.valueOf(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown option " + args[i - 1]);
+            }
+        }
+        if (userCount < 2 || rate <= 0 || durationSeconds <= 0
+                || privatePercent + userListPercent > 100) {
+            throw new IllegalArgumentException("Bad settings: need at least "
+                    + "2 users, a positive rate and duration, and at most "
+                    + "100% private messages and user list requests");
+        }
+    }
+
+    /**
+     * Run the test and print the results.
+     */
+    public void run() throws IOException, InterruptedException {
+        ChatServer server = null;
+        if (host == null) {
+            // No presence announcements: logging in n users would send n^2
+            // of them
+            server = new ChatServer(0,
+                    Runtime.getRuntime().availableProcessors(), false);
+            host = "localhost";
+            port = server.getPort();
+            System.out.println("Embedded server on port " + port);
+        }
+        try {
+            if (logIn()) {
+                sendLoad();
+            }
+        } finally {
+            for (SimulatedUser user : users) {
+                user.getClient().disconnect();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Connect and log in all users.
+     *
+     * @return True when all are logged in
+     */
+    private boolean logIn() throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < userCount; ++i) {
+            ChatClientFacade client = new TCPClient(transportMode);
+            SimulatedUser user = new SimulatedUser("load" + i, client,
+                    results);
+            if (!user.connect(host, port)) {
+                System.err.println("Could not connect user " + i + " to "
+                        + host + ":" + port);
+                return false;
+            }
+            users.add(user);
+        }
+        for (SimulatedUser user : users) {
+            if (!user.awaitLogin(10000)) {
+                System.err.println(user.getUsername() + " did not log in");
+                return false;
+            }
+        }
+        System.out.printf("%d users logged in after %d ms%n", userCount,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * Send on schedule for the warm-up and the measured period, then wait
+     * for the last messages to arrive.
+     */
+    private void sendLoad() throws InterruptedException {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        results.startMeasuring(measureFrom);
+        System.out.printf("Sending %.0f ops/s: %d s warm-up, %d s "
+                + "measured%n", rate, warmupSeconds, durationSeconds);
+
+        for (long k = 0;; ++k) {
+            long scheduled = start + (long) (k * intervalNanos);
+            if (scheduled >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            // When behind schedule, send right away: the lateness counts in
+            // the latency of these requests
+            sendOne(scheduled, now);
+        }
+
+        // Wait until no more messages arrive
+        long before;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        do {
+            before = results.getDeliveryCount();
+            Thread.sleep(500);
+        } while (results.getDeliveryCount() > before
+                && System.nanoTime() < deadline);
+
+        results.print(durationSeconds);
+    }
+
+    private void sendOne(long scheduled, long now) {
+        SimulatedUser from = users.get(random.nextInt(users.size()));
+        int op = random.nextInt(100);
+        if (op < userListPercent) {
+            from.refreshUserList(scheduled);
+            return;
+        }
+        String text = SimulatedUser.messageText(scheduled, now);
+        boolean ok;
+        int recipients;
+        if (op < userListPercent + privatePercent) {
+            SimulatedUser to;
+            do {
+                to = users.get(random.nextInt(users.size()));
+            } while (to == from);
+            ok = from.getClient().sendPrivateMessage(to.getUsername(), text);
+            recipients = 1;
+        } else {
+            ok = from.getClient().sendPublicMessage(text);
+            recipients = users.size() - 1;
+        }
+        if (ok) {
+            results.recordSent(scheduled, recipients);
+        } else {
+            results.recordError();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package no.ntnu.datakomm.loadgen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Latencies and counters of a load test run. Only what was scheduled after
+ * the warm-up is recorded.
+ */
+class LoadResults {
+
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    // From the scheduled send time: corrected for coordinated omission
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    // From the actual send time, for comparison
+    private final LatencyHistogram deliveryUncorrected
+            = new LatencyHistogram();
+    private final LatencyHistogram userList = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong expectedDeliveries = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Start recording what is scheduled from now on.
+     *
+     * @param nanos System.nanoTime() at the end of the warm-up
+     */
+    void startMeasuring(long nanos) {
+        measureFromNanos = nanos;
+    }
+
+    private boolean measured(long scheduledNanos) {
+        return scheduledNanos >= measureFromNanos;
+    }
+
+    void recordSent(long scheduledNanos, int recipients) {
+        if (measured(scheduledNanos)) {
+            sent.incrementAndGet();
+            expectedDeliveries.addAndGet(recipients);
+        }
+    }
+
+    void recordDelivery(long scheduledNanos, long sentNanos,
+            long receivedNanos) {
+        if (measured(scheduledNanos)) {
+            delivery.record(receivedNanos - scheduledNanos);
+            deliveryUncorrected.record(receivedNanos - sentNanos);
+        }
+    }
+
+    void recordUserList(long scheduledNanos, long receivedNanos) {
+        if (measured(scheduledNanos)) {
+            userList.record(receivedNanos - scheduledNanos);
+        }
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @return Number of messages received since the measuring started
+     */
+    long getDeliveryCount() {
+        return delivery.getCount();
+    }
+
+    /**
+     * Print the results.
+     *
+     * @param seconds Length of the measured period
+     */
+    void print(double seconds) {
+        long deliveries = delivery.getCount();
+        System.out.printf("Sent:       %d messages, %.0f/s%n", sent.get(),
+                sent.get() / seconds);
+        System.out.printf("Delivered:  %d of %d, %.0f/s%n", deliveries,
+                expectedDeliveries.get(), deliveries / seconds);
+        System.out.printf("Errors:     %d%n", errors.get());
+        printLatency("Send->receive", delivery);
+        printLatency("  uncorrected", deliveryUncorrected);
+        printLatency("User list", userList);
+    }
+
+    private static void printLatency(String name, LatencyHistogram h) {
+        System.out.printf("%-14s p50 %8.3f ms  p99 %8.3f ms  p99.9 %8.3f ms"
+                + "  max %8.3f ms  (%d)%n", name, millis(h.getPercentile(50)),
+                millis(h.getPercentile(99)), millis(h.getPercentile(99.9)),
+                millis(h.getMax()), h.getCount());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
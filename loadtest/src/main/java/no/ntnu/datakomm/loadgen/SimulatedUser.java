@@ -0,0 +1,171 @@
+package no.ntnu.datakomm.loadgen;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatClientFacade;
+import no.ntnu.datakomm.facade.ChatListener;
+
+/**
+ * One user of the load test: a chat client and the listener that times the
+ * messages it receives.
+ *
+ * Every message the LoadGenerator sends carries two times: when it should
+ * have been sent according to the schedule, and when it actually was. The
+ * receiver records the delay from both. Only the first is corrected for
+ * coordinated omission: when the sender falls behind, the messages it sends
+ * late are counted as late, instead of the stall hiding in the pause between
+ * two measurements.
+ */
+class SimulatedUser implements ChatListener {
+
+    // Start of the text of a message sent by the load generator
+    static final String MARKER = "lg";
+
+    private final String username;
+    private final ChatClientFacade client;
+    private final LoadResults results;
+    private final CountDownLatch loggedIn = new CountDownLatch(1);
+    private volatile boolean loginOk = false;
+    // Scheduled times of the user list requests waiting for a reply
+    private final Queue<Long> userListRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * @param username Name to log in with
+     * @param client The client, not connected yet
+     * @param results Where the latencies are recorded
+     */
+    SimulatedUser(String username, ChatClientFacade client,
+            LoadResults results) {
+        this.username = username;
+        this.client = client;
+        this.results = results;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    ChatClientFacade getClient() {
+        return client;
+    }
+
+    /**
+     * @return Number of load test messages this user received
+     */
+    long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Connect and send the login command. Does not wait for the reply.
+     *
+     * @param host Server address
+     * @param port Server port
+     * @return True when connected
+     */
+    boolean connect(String host, int port) {
+        if (!client.connect(host, port)) {
+            return false;
+        }
+        client.addListener(this);
+        client.startListenThread();
+        client.tryLogin(username);
+        return true;
+    }
+
+    /**
+     * Wait for the reply to the login.
+     *
+     * @param timeoutMillis How long to wait
+     * @return True when logged in
+     * @throws InterruptedException when interrupted
+     */
+    boolean awaitLogin(long timeoutMillis) throws InterruptedException {
+        return loggedIn.await(timeoutMillis, TimeUnit.MILLISECONDS)
+                && loginOk;
+    }
+
+    /**
+     * Build the text of a load test message.
+     *
+     * @param scheduledNanos When the message should have been sent
+     * @param sentNanos When it is sent
+     * @return The text
+     */
+    static String messageText(long scheduledNanos, long sentNanos) {
+        return MARKER + " " + scheduledNanos + " " + sentNanos;
+    }
+
+    /**
+     * Ask for the user list; the time until the reply is recorded.
+     *
+     * @param scheduledNanos When the request should have been sent
+     */
+    void refreshUserList(long scheduledNanos) {
+        userListRequests.add(scheduledNanos);
+        client.refreshUserList();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        loginOk = success;
+        if (!success) {
+            System.err.println(username + " could not log in: " + errMsg);
+        }
+        loggedIn.countDown();
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        long now = System.nanoTime();
+        String text = message.getText();
+        if (!text.startsWith(MARKER + " ")) {
+            return;
+        }
+        int space = text.indexOf(' ', MARKER.length() + 1);
+        if (space < 0) {
+            return;
+        }
+        try {
+            long scheduled = Long.parseLong(
+                    text.substring(MARKER.length() + 1, space));
+            long sent = Long.parseLong(text.substring(space + 1));
+            received.incrementAndGet();
+            results.recordDelivery(scheduled, sent, now);
+        } catch (NumberFormatException e) {
+            // Not one of ours
+        }
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        Long scheduled = userListRequests.poll();
+        if (scheduled != null) {
+            results.recordUserList(scheduled, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        loggedIn.countDown();
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        results.recordError();
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        results.recordError();
+    }
+}
@@ -0,0 +1,457 @@
+package no.ntnu.datakomm.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference chat server speaking the same line protocol as the course
+ * server, for testing and load-testing the client without the network.
+ *
+ * Commands: login, msg, privmsg, users and help. Replies: loginok/loginerr,
+ * msgok/msgerr, users, supported and cmderr. Messages are delivered as
+ * "msg sender text" and "privmsg sender text". Unless presence is turned
+ * off, the other users are told about logins and logouts with "joined user"
+ * and "left user".
+ *
+ * The connections are shared by a few selector threads. A message to all
+ * users is encoded once into a read-only buffer that every recipient's queue
+ * points to, so broadcasting costs one small object per recipient and no
+ * copying.
+ *
+ * A connection without data waiting takes a few hundred bytes, so tens of
+ * thousands of clients fit easily. For 50 000 loopback connections, raise
+ * the open files limit (ulimit -n) and spread the clients over several
+ * loopback addresses (127.0.0.1, 127.0.0.2, ...): each address only has
+ * about 28 000 ephemeral ports.
+ *
+ * Run: java -cp target/loadtest.jar no.ntnu.datakomm.server.ChatServer
+ * [port] [--threads n] [--no-presence]
+ */
+public class ChatServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 1300;
+
+    private static final byte[] LOGIN = ascii("login");
+    private static final byte[] MSG = ascii("msg");
+    private static final byte[] PRIVMSG = ascii("privmsg");
+    private static final byte[] USERS = ascii("users");
+    private static final byte[] HELP = ascii("help");
+
+    private static final ByteBuffer LOGIN_OK = line("loginok");
+    private static final ByteBuffer BAD_USERNAME
+            = line("loginerr incorrect username format");
+    private static final ByteBuffer USERNAME_TAKEN
+            = line("loginerr username already in use");
+    private static final ByteBuffer UNAUTHORIZED
+            = line("msgerr unauthorized");
+    private static final ByteBuffer NOT_SUPPORTED
+            = line("cmderr command not supported");
+    private static final ByteBuffer SUPPORTED = line(
+            "supported login msg privmsg users help joined left");
+    private static final ByteBuffer SUPPORTED_NO_PRESENCE = line(
+            "supported login msg privmsg users help");
+
+    private final ServerSocketChannel serverChannel;
+    private final ServerLoop[] loops;
+    private final boolean announcePresence;
+    private final Thread acceptor;
+
+    // The users logged in
+    private final ConcurrentMap<String, ClientConnection> users
+            = new ConcurrentHashMap<>();
+    // Counts the changes to the users, after the change is made
+    private final AtomicLong usersVersion = new AtomicLong();
+    // The reply to "users", encoded when first asked for after a change
+    private volatile UsersReply usersReply;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong messageCount = new AtomicLong();
+
+    /**
+     * Start a server on the default port, with one selector thread per
+     * processor, announcing logins and logouts.
+     *
+     * @throws IOException when the port cannot be opened
+     */
+    public ChatServer() throws IOException {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * Start a server with one selector thread per processor, announcing
+     * logins and logouts.
+     *
+     * @param port TCP port, 0 for any free port
+     * @throws IOException when the port cannot be opened
+     */
+    public ChatServer(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Start a server.
+     *
+     * @param port TCP port, 0 for any free port
+     * @param threads Number of selector threads
+     * @param announcePresence When true, send "joined" and "left" to the
+     * other users on login and logout. Turn off when logging in many
+     * thousands of clients, each login is a message to everyone.
+     * @throws IOException when the port cannot be opened
+     */
+    public ChatServer(int port, int threads, boolean announcePresence)
+            throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.announcePresence = announcePresence;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+        loops = new ServerLoop[threads];
+        try {
+            for (int i = 0; i < threads; ++i) {
+                loops[i] = new ServerLoop(this, "chat-server-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        acceptor = new Thread(this::acceptConnections, "chat-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Number of open connections
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return Number of users logged in
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return Number of public and private messages received
+     */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * Accept connections and spread them over the selector threads. Runs on
+     * its own thread, blocking in accept().
+     */
+    private void acceptConnections() {
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Usually out of file descriptors, try again a bit later
+                System.err.println("Accept failed: " + e.getMessage());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void onOpened(ClientConnection connection) {
+        connectionCount.incrementAndGet();
+    }
+
+    void onClosed(ClientConnection connection) {
+        connectionCount.decrementAndGet();
+        String username = connection.getUsername();
+        if (username != null && users.remove(username, connection)) {
+            usersVersion.incrementAndGet();
+            if (announcePresence) {
+                broadcast(line("left " + username), null);
+            }
+        }
+    }
+
+    /**
+     * Handle one line received from a client. Called on the connection's
+     * loop thread.
+     *
+     * @param from The client
+     * @param bytes Buffer holding the line
+     * @param start Start of the line
+     * @param end End of the line, without newline
+     */
+    void handleLine(ClientConnection from, byte[] bytes, int start,
+            int end) {
+        int space = indexOf(bytes, start, end, (byte) ' ');
+        int commandEnd = space >= 0 ? space : end;
+        int params = space >= 0 ? space + 1 : end;
+        if (commandEnd == start) {
+            return;
+        }
+        if (matches(bytes, start, commandEnd, MSG)) {
+            onMsg(from, bytes, params, end);
+        } else if (matches(bytes, start, commandEnd, PRIVMSG)) {
+            onPrivmsg(from, bytes, params, end);
+        } else if (matches(bytes, start, commandEnd, LOGIN)) {
+            onLogin(from, new String(bytes, params, end - params,
+                    StandardCharsets.UTF_8));
+        } else if (matches(bytes, start, commandEnd, USERS)) {
+            from.send(getUsersReply());
+        } else if (matches(bytes, start, commandEnd, HELP)) {
+            from.send(announcePresence ? SUPPORTED : SUPPORTED_NO_PRESENCE);
+        } else {
+            from.send(NOT_SUPPORTED);
+        }
+    }
+
+    private void onLogin(ClientConnection from, String username) {
+        if (!isValidUsername(username)) {
+            from.send(BAD_USERNAME);
+            return;
+        }
+        String current = from.getUsername();
+        if (username.equals(current)) {
+            from.send(LOGIN_OK);
+            return;
+        }
+        if (users.putIfAbsent(username, from) != null) {
+            from.send(USERNAME_TAKEN);
+            return;
+        }
+        if (current != null) {
+            // Logging in again under another name
+            users.remove(current, from);
+            if (announcePresence) {
+                broadcast(line("left " + current), from);
+            }
+        }
+        from.setUsername(username,
+                username.getBytes(StandardCharsets.UTF_8));
+        usersVersion.incrementAndGet();
+        from.send(LOGIN_OK);
+        if (announcePresence) {
+            broadcast(line("joined " + username), from);
+        }
+    }
+
+    private void onMsg(ClientConnection from, byte[] bytes, int textStart,
+            int end) {
+        byte[] sender = from.getUsernameBytes();
+        if (sender == null) {
+            from.send(UNAUTHORIZED);
+            return;
+        }
+        messageCount.incrementAndGet();
+        int recipients = broadcast(
+                encodeMessage(MSG, sender, bytes, textStart, end), from);
+        from.send(line("msgok " + recipients));
+    }
+
+    private void onPrivmsg(ClientConnection from, byte[] bytes, int params,
+            int end) {
+        byte[] sender = from.getUsernameBytes();
+        if (sender == null) {
+            from.send(UNAUTHORIZED);
+            return;
+        }
+        int space = indexOf(bytes, params, end, (byte) ' ');
+        int recipientEnd = space >= 0 ? space : end;
+        String recipient = new String(bytes, params, recipientEnd - params,
+                StandardCharsets.UTF_8);
+        ClientConnection to = users.get(recipient);
+        if (to == null) {
+            from.send(line("msgerr incorrect recipient " + recipient));
+            return;
+        }
+        messageCount.incrementAndGet();
+        int textStart = space >= 0 ? space + 1 : end;
+        to.send(encodeMessage(PRIVMSG, sender, bytes, textStart, end));
+        from.send(line("msgok 1"));
+    }
+
+    /**
+     * Send a line to all users logged in.
+     *
+     * @param line The encoded line, shared by all recipients
+     * @param except A user who does not get the line, null for none
+     * @return Number of recipients
+     */
+    private int broadcast(ByteBuffer line, ClientConnection except) {
+        int count = 0;
+        for (ClientConnection c : users.values()) {
+            if (c != except) {
+                c.send(line);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The reply to "users". The list is read after the version, so it has
+     * at least the changes counted in the version it is stored with; a
+     * change made while it is encoded only makes the next call encode it
+     * again.
+     */
+    private ByteBuffer getUsersReply() {
+        long version = usersVersion.get();
+        UsersReply reply = usersReply;
+        if (reply == null || reply.version != version) {
+            StringBuilder sb = new StringBuilder("users");
+            for (String username : users.keySet()) {
+                sb.append(' ').append(username);
+            }
+            reply = new UsersReply(version, line(sb.toString()));
+            usersReply = reply;
+        }
+        return reply.line;
+    }
+
+    private static final class UsersReply {
+        final long version;
+        final ByteBuffer line;
+
+        UsersReply(long version, ByteBuffer line) {
+            this.version = version;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Encode "command sender text\n", copying the text from the received
+     * bytes without decoding it.
+     */
+    private static ByteBuffer encodeMessage(byte[] command, byte[] sender,
+            byte[] bytes, int textStart, int end) {
+        int textLength = end - textStart;
+        byte[] out = new byte[command.length + sender.length + textLength
+                + 3];
+        System.arraycopy(command, 0, out, 0, command.length);
+        int pos = command.length;
+        out[pos++] = ' ';
+        System.arraycopy(sender, 0, out, pos, sender.length);
+        pos += sender.length;
+        out[pos++] = ' ';
+        System.arraycopy(bytes, textStart, out, pos, textLength);
+        out[out.length - 1] = '\n';
+        return ByteBuffer.wrap(out).asReadOnlyBuffer();
+    }
+
+    /**
+     * Usernames are letters and digits only: they are separated by spaces in
+     * the users reply and in messages.
+     */
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); ++i) {
+            if (!Character.isLetterOrDigit(username.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; ++i) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] bytes, int from, int to,
+            byte[] word) {
+        if (to - from != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; ++i) {
+            if (bytes[from + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer line(String s) {
+        return ByteBuffer.wrap((s + "\n").getBytes(StandardCharsets.UTF_8))
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Stop accepting connections and close the open ones.
+     */
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (ServerLoop loop : loops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean presence = true;
+        for (int i = 0; i < args.length; ++i) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--no-presence".equals(args[i])) {
+                presence = false;
+            } else {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+        ChatServer server = new ChatServer(port, threads, presence);
+        System.out.println("Chat server listening on port "
+                + server.getPort() + ", " + threads + " threads");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        // The server threads are daemons: keep the JVM running
+        try {
+            server.acceptor.join();
+        } catch (InterruptedException e) {
+            server.close();
+        }
+    }
+}
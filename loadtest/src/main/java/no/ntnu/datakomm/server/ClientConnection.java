@@ -0,0 +1,213 @@
+package no.ntnu.datakomm.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One client connected to the ChatServer. Reading, parsing and writing
+ * happen on the thread of the connection's ServerLoop; any thread may send()
+ * to it.
+ *
+ * Outgoing data is a queue of read-only buffers. A broadcast puts the same
+ * encoded line in the queue of every recipient, each with its own position,
+ * so the line is encoded once however many users are online.
+ */
+class ClientConnection {
+
+    // A client that does not read its data is disconnected when this many
+    // lines are waiting for it
+    static final int MAX_QUEUED = 65536;
+
+    private final ChatServer server;
+    private final ServerLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Filled by any thread, emptied by the loop thread
+    private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Set by the first send that finds the queue full
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    // Taken from the outbox, not completely written yet. Loop thread only.
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    // The start of a line that did not fit in one read. Loop thread only.
+    private byte[] partial;
+
+    // Set on the loop thread when the user logs in
+    private volatile String username;
+    private byte[] usernameBytes;
+    private volatile boolean closed = false;
+
+    ClientConnection(ChatServer server, ServerLoop loop,
+            SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The name the user logged in with, null before login
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return The username encoded as UTF-8, null before login
+     */
+    byte[] getUsernameBytes() {
+        return usernameBytes;
+    }
+
+    void setUsername(String username, byte[] usernameBytes) {
+        this.username = username;
+        this.usernameBytes = usernameBytes;
+    }
+
+    /**
+     * Queue an encoded line for the client. May be called from any thread.
+     *
+     * @param line The line, with newline. Not modified, so the same buffer
+     * can be sent to many clients.
+     */
+    void send(ByteBuffer line) {
+        if (closed) {
+            return;
+        }
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            if (overflowed.compareAndSet(false, true)) {
+                System.err.println("Disconnecting " + this
+                        + ", it does not read its data");
+                loop.execute(this::close);
+            }
+            return;
+        }
+        outbox.add(line.duplicate());
+        if (scheduled.compareAndSet(false, true)) {
+            loop.schedule(this);
+        }
+    }
+
+    /**
+     * Read what the client sent and handle the complete lines. Loop thread
+     * only.
+     *
+     * @param readBuffer The loop's read buffer
+     */
+    void handleReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        if (partial != null) {
+            readBuffer.put(partial);
+            partial = null;
+        }
+        int count;
+        try {
+            count = channel.read(readBuffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            close();
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        int limit = readBuffer.position();
+        int start = 0;
+        for (int i = 0; i < limit && !closed; ++i) {
+            if (bytes[i] == '\n') {
+                int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                server.handleLine(this, bytes, start, end);
+                start = i + 1;
+            }
+        }
+        if (start < limit && !closed) {
+            if (start == 0 && limit == readBuffer.capacity()) {
+                System.err.println("Line too long, disconnecting " + this);
+                close();
+                return;
+            }
+            partial = Arrays.copyOfRange(bytes, start, limit);
+        }
+    }
+
+    /**
+     * Write as much of the queued data as the socket takes, with gathering
+     * writes. Loop thread only.
+     */
+    void flush() {
+        scheduled.set(false);
+        if (closed) {
+            return;
+        }
+        ByteBuffer line;
+        while ((line = outbox.poll()) != null) {
+            pending.add(line);
+        }
+        ByteBuffer[] gather = loop.gatherArray();
+        try {
+            boolean full = false;
+            while (!pending.isEmpty() && !full) {
+                int n = 0;
+                for (ByteBuffer b : pending) {
+                    gather[n++] = b;
+                    if (n == gather.length) {
+                        break;
+                    }
+                }
+                channel.write(gather, 0, n);
+                // The socket buffer is full if not all was written
+                full = gather[n - 1].hasRemaining();
+                Arrays.fill(gather, 0, n, null);
+                while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                    pending.poll();
+                    queued.decrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        // Continue when the socket is writable again
+        int ops = pending.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Close the connection. Loop thread only.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        ServerLoop.closeQuietly(channel);
+        outbox.clear();
+        pending.clear();
+        server.onClosed(this);
+    }
+
+    @Override
+    public String toString() {
+        return username != null ? username : channel.toString();
+    }
+}
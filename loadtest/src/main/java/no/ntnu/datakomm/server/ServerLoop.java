@@ -0,0 +1,185 @@
+package no.ntnu.datakomm.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread of the server, serving a share of the connections. A
+ * connection is read, parsed and written only on the thread of its loop.
+ * Other threads hand over work through execute() and schedule().
+ */
+class ServerLoop implements Runnable {
+
+    // Shared by all the connections of this loop. Also the longest line a
+    // client may send.
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Most buffers written with one gathering write
+    static final int MAX_GATHER = 64;
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Connections with new data in their outbox
+    private final Queue<ClientConnection> dirty
+            = new ConcurrentLinkedQueue<>();
+    // Set when a wakeup is on its way, so that a broadcast wakes the
+    // selector once and not once per recipient
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile boolean running = true;
+
+    /**
+     * Create the loop and start its thread.
+     *
+     * @param server The server the connections belong to
+     * @param name Name of the selector thread
+     * @throws IOException when the selector could not be opened
+     */
+    ServerLoop(ChatServer server, String name) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start serving a newly accepted connection.
+     *
+     * @param channel The connection, in non-blocking mode
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                ClientConnection connection
+                        = new ClientConnection(server, this, channel);
+                connection.setKey(channel.register(selector,
+                        SelectionKey.OP_READ, connection));
+                server.onOpened(connection);
+            } catch (IOException e) {
+                System.err.println("Could not register connection: "
+                        + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the loop's thread.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Flush a connection's outbox at the end of the loop's current round.
+     *
+     * @param connection A connection of this loop
+     */
+    void schedule(ClientConnection connection) {
+        dirty.add(connection);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (Thread.currentThread() != thread
+                && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return Gathering array for ClientConnection.flush(). Only used on the
+     * loop's thread.
+     */
+    ByteBuffer[] gatherArray() {
+        return gather;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                return;
+            }
+            // Wakeups asked for after this point wake the next select
+            wakeupPending.set(false);
+            runTasks();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                ClientConnection connection
+                        = (ClientConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Error while handling connection: "
+                            + e);
+                    connection.close();
+                }
+            }
+            // The replies and broadcasts of this round, one write per
+            // connection
+            ClientConnection connection;
+            while ((connection = dirty.poll()) != null) {
+                connection.flush();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((ClientConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error in server task: " + e);
+            }
+        }
+    }
+
+    /**
+     * Close all connections and stop the thread.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
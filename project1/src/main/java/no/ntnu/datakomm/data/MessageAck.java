@@ -0,0 +1,35 @@
+package no.ntnu.datakomm.data;
+
+/**
+ * The server's confirmation that a chat message we sent was delivered.
+ */
+public class MessageAck {
+
+    private final int recipientCount;
+    private final long roundTripNanos;
+
+    /**
+     * @param recipientCount Number of users the server delivered the message
+     * to
+     * @param roundTripNanos Time from sending the message until the
+     * confirmation arrived, in nanoseconds
+     */
+    public MessageAck(int recipientCount, long roundTripNanos) {
+        this.recipientCount = recipientCount;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "delivered to " + recipientCount + " in "
+                + roundTripNanos / 1000 + "us";
+    }
+}
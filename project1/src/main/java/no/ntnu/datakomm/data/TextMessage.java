@@ -11,6 +11,8 @@ public class TextMessage {
     private final String sender;
     private final boolean priv;
     private final String text;
+    // The message is immutable, so the hash is computed once
+    private final int hash;
 
     /**
      * @param sender Username of the sender
@@ -21,6 +23,24 @@ public class TextMessage {
         this.sender = sender;
         this.priv = priv;
         this.text = text;
+        this.hash = computeHash(sender, priv, text);
+    }
+
+    /**
+     * Combine the field hashes and mix the bits (the finalizer of
+     * MurmurHash3), so that similar messages spread well over the buckets of
+     * a hash table.
+     */
+    private static int computeHash(String sender, boolean priv, String text) {
+        int h = Objects.hashCode(sender);
+        h = 31 * h + Objects.hashCode(text);
+        h = 31 * h + (priv ? 1 : 0);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
     public String getSender() {
@@ -42,15 +62,21 @@ public class TextMessage {
 
     @Override
     public boolean equals(Object o) {
-        return o != null && o.hashCode() == this.hashCode();
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof TextMessage)) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        return hash == other.hash
+                && priv == other.priv
+                && Objects.equals(sender, other.sender)
+                && Objects.equals(text, other.text);
     }
 
     @Override
     public int hashCode() {
-        int hash = 3;
-        hash = 71 * hash + Objects.hashCode(this.sender);
-        hash = 71 * hash + (this.priv ? 1 : 0);
-        hash = 71 * hash + Objects.hashCode(this.text);
         return hash;
     }
 
@@ -0,0 +1,36 @@
+package no.ntnu.datakomm.facade;
+
+import java.util.concurrent.CompletableFuture;
+import no.ntnu.datakomm.data.MessageAck;
+
+/**
+ * A chat client facade whose message sending methods return a future instead
+ * of a boolean. The future is completed when the server confirms or rejects
+ * that particular message, so many messages can be in flight at once.
+ *
+ * The futures are completed on the thread reading the socket. Use the
+ * ...Async() methods of CompletableFuture for slow follow-up work.
+ */
+public interface AsyncChatClientFacade extends ChatClientFacade {
+
+    /**
+     * Send a public message to all the recipients
+     *
+     * @param message
+     * @return Completed with the server's confirmation, or exceptionally with
+     * MessageRejectedException when the message was refused (by the server
+     * or because it contained illegal characters) and with IOException when
+     * the connection was closed before the confirmation arrived
+     */
+    public CompletableFuture<MessageAck> sendPublicMessageAsync(String message);
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message
+     * @return Completed like for sendPublicMessageAsync()
+     */
+    public CompletableFuture<MessageAck> sendPrivateMessageAsync(
+            String recipient, String message);
+}
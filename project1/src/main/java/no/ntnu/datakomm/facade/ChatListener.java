@@ -1,5 +1,6 @@
 package no.ntnu.datakomm.facade;
 
+import java.util.List;
 import no.ntnu.datakomm.data.TextMessage;
 
 /**
@@ -33,6 +34,21 @@ public interface ChatListener {
      */
     public void onMessageReceived(TextMessage message);
 
+    /**
+     * This method is called with all the text messages received in one read
+     * from the socket, in the order they arrived. The default implementation
+     * calls onMessageReceived() for each of them; listeners that handle many
+     * messages can override it to process a whole batch at once.
+     *
+     * @param messages The messages, never empty. The list can be kept but not
+     * modified.
+     */
+    public default void onMessagesReceived(List<TextMessage> messages) {
+        for (TextMessage message : messages) {
+            onMessageReceived(message);
+        }
+    }
+
     /**
      * This method is called when an error happened when we tried to send
      * message to the server (the message was not sent to necessary recipients)
@@ -49,6 +65,25 @@ public interface ChatListener {
      */
     public void onUserList(String[] usernames);
 
+    /**
+     * This method is called when users have logged in since the last user
+     * list. It is called after onUserList(). The first user list of a
+     * connection reports all its users as joined.
+     *
+     * @param usernames The users who joined, sorted
+     */
+    public default void onUsersJoined(String[] usernames) {
+    }
+
+    /**
+     * This method is called when users have left since the last user list.
+     * It is called after onUserList().
+     *
+     * @param usernames The users who left, sorted
+     */
+    public default void onUsersLeft(String[] usernames) {
+    }
+
     /**
      * This method is called when a list of currently supported commands is
      * received
@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.facade;
+
+/**
+ * A chat message was not delivered: the server answered with an error, or
+ * the client could not send it at all.
+ */
+public class MessageRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param reason Error message from the server or the client
+     */
+    public MessageRejectedException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,86 @@
+package no.ntnu.datakomm.gui;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * One row of the chat window. The list creates only as many cells as there
+ * are visible rows and reuses them while scrolling, so the GUI elements are
+ * created once here and only their text and style change per message.
+ */
+class ChatCell extends ListCell<ChatEntry> {
+
+    private final HBox message = new HBox();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+    private final Pane spacer = new Pane();
+    private final Runnable onFirstRowShown;
+
+    /**
+     * @param onFirstRowShown Called when the cell shows the first row of the
+     * list, that is when the user has scrolled to the top
+     */
+    ChatCell(Runnable onFirstRowShown) {
+        this.onFirstRowShown = onFirstRowShown;
+        getStyleClass().add("chatCell");
+        messageText.setWrapText(true);
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        // Follow the width of the list instead of the text, so that long
+        // messages wrap
+        setPrefWidth(0);
+    }
+
+    @Override
+    protected void updateItem(ChatEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        ObservableList<String> senderStyle = messageSender.getStyleClass();
+        senderStyle.setAll("label", "sender");
+        String senderText;
+        if (msg.isPrivate()) {
+            senderText = "Private from " + msg.getSender() + ":";
+            senderStyle.add("private");
+        } else {
+            senderText = msg.getSender() + ":";
+        }
+        messageSender.setText(senderText);
+        messageText.setText(msg.getText());
+        ObservableList<String> textStyle = messageText.getStyleClass();
+        textStyle.setAll("label", "message");
+        if (entry.isWarning()) {
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(messageContent);
+            if (msg.getSender().equals("err")) {
+                textStyle.add("warning");
+            } else {
+                textStyle.add("info");
+            }
+        } else if (entry.isLocal()) {
+            textStyle.add(entry.isFailed() ? "failedMessage" : "sentMessage");
+            messageContent.getChildren().setAll(messageText);
+            // Add empty space first (left), then the message (right)
+            message.getChildren().setAll(spacer, messageContent);
+        } else {
+            textStyle.add("otherMessage");
+            messageContent.getChildren().setAll(messageSender, messageText);
+            // Add message first (left), then empty space (right)
+            message.getChildren().setAll(messageContent, spacer);
+        }
+        setGraphic(message);
+        if (getIndex() == 0) {
+            onFirstRowShown.run();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package no.ntnu.datakomm.gui;
+
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * One entry of the chat window: a message and how to show it.
+ */
+class ChatEntry {
+
+    private final TextMessage message;
+    private final boolean local;
+    private final boolean warning;
+    private final boolean failed;
+    private final long position;
+
+    /**
+     * @param message The message to be displayed
+     * @param local When true, this message was sent by us. When false -
+     * received from another user
+     * @param warning When true, this is not a chat message sent by a user.
+     * Rather, it is some kind of warning/error message sent by the server. If
+     * this is set to true and sender is "err", this is treated as an error
+     * message.
+     * @param failed When true, this message was sent by us but could not be
+     * sent, because we were not connected
+     */
+    ChatEntry(TextMessage message, boolean local, boolean warning,
+            boolean failed) {
+        this(message, local, warning, failed, -1);
+    }
+
+    /**
+     * @param message The message to be displayed
+     * @param local When true, this message was sent by us
+     * @param warning When true, this is a warning/error message
+     * @param failed When true, this message could not be sent
+     * @param position Position of the message in the history journal, -1
+     * if it was not loaded from the history
+     */
+    ChatEntry(TextMessage message, boolean local, boolean warning,
+            boolean failed, long position) {
+        this.message = message;
+        this.local = local;
+        this.warning = warning;
+        this.failed = failed;
+        this.position = position;
+    }
+
+    TextMessage getMessage() {
+        return message;
+    }
+
+    boolean isLocal() {
+        return local;
+    }
+
+    boolean isWarning() {
+        return warning;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    long getPosition() {
+        return position;
+    }
+}
@@ -2,18 +2,30 @@ package no.ntnu.datakomm.gui;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
-import javafx.scene.layout.VBox;
-
-import static java.lang.Thread.sleep;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.JMException;
 import javafx.collections.ObservableList;
 import no.ntnu.datakomm.data.TextMessage;
 import no.ntnu.datakomm.facade.ChatListener;
+import no.ntnu.datakomm.history.HistoryPager;
+import no.ntnu.datakomm.history.JournalEntry;
+import no.ntnu.datakomm.history.JournalReader;
+import no.ntnu.datakomm.history.MessageIndex;
+import no.ntnu.datakomm.history.MessageJournal;
+import no.ntnu.datakomm.logic.PresenceMonitor;
 import no.ntnu.datakomm.logic.TCPClient;
+import no.ntnu.datakomm.logic.WireRecorder;
+import no.ntnu.datakomm.metrics.MetricsHttpServer;
 
 /**
  * The main GUI class controlling the wiring between logic and user interface.
@@ -22,6 +34,15 @@ import no.ntnu.datakomm.logic.TCPClient;
  */
 public class GUIController implements ChatListener {
 
+    // Messages kept in the chat window, older ones are dropped
+    private static final int MAX_SCROLLBACK = 10000;
+    // Rows kept while the user is scrolled up, however many arrive
+    private static final int MAX_ROWS = 2 * MAX_SCROLLBACK;
+    // Most search results shown at once
+    private static final int SEARCH_LIMIT = 100;
+    // Messages loaded from the history at a time when scrolling up
+    private static final int HISTORY_PAGE_SIZE = 200;
+
     @FXML
     private Button submitBtn;
 
@@ -35,10 +56,10 @@ public class GUIController implements ChatListener {
     private Button helpBtn;
 
     @FXML
-    private VBox userList;
+    private ListView<String> userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<ChatEntry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -53,16 +74,51 @@ public class GUIController implements ChatListener {
     private TextField loginInput;
 
     @FXML
-    private TitledPane serverStatus;
+    private TextField searchInput;
+
+    @FXML
+    private TitledPane searchPane;
 
     @FXML
-    private ScrollPane outputScroll;
+    private ListView<ChatEntry> searchResults;
+
+    @FXML
+    private TitledPane serverStatus;
 
     // Interface to the logic 
     private TCPClient tcpClient;
 
-    // One background thread will be used to poll for user list every 10 seconds
-    private Thread userPollThread;
+    // Keeps the user list up to date while connected
+    private PresenceMonitor presence;
+
+    // Received messages stored on disk, and the search index over them.
+    // Null if the history could not be opened.
+    private MessageJournal journal;
+    private MessageIndex index;
+    // Loads older messages into the chat window when the user scrolls to
+    // the top. The flags are only used on the GUI thread.
+    private HistoryPager pager;
+    // End of the journal when the GUI started: the history before this
+    // session
+    private long sessionStart;
+    private boolean loadingHistory = false;
+    private boolean historyComplete = false;
+    private int historyPagesShown = 0;
+    // Runs the searches, one at a time
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(
+            r -> {
+                Thread t = new Thread(r, "chat-search");
+                t.setDaemon(true);
+                return t;
+            });
+    // Number of the latest search, only changed on the GUI thread. An
+    // older search stops early and its results are not shown.
+    private volatile int searchNumber = 0;
+
+    // Updates from the background threads, applied once per frame
+    private GuiUpdateCoalescer guiUpdates;
+    // Vertical scroll bar of the chat window, found when first needed
+    private ScrollBar chatScrollBar;
 
     /**
      * Called by the FXML loader after the labels declared above are injected.
@@ -72,11 +128,98 @@ public class GUIController implements ChatListener {
         // Set default values
         hostInput.setText("jonoie.com");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        textOutput.setCellFactory(list -> new ChatCell(this::loadOlderHistory));
+        userList.setCellFactory(list -> createUserCell());
+        searchResults.setCellFactory(list -> new ChatCell(() -> {
+        }));
+        guiUpdates = new GuiUpdateCoalescer(this::showEntries,
+                this::showUserList);
+        guiUpdates.start();
+        openHistory();
+        startCapture();
+        startMetrics();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Open the message history: the journal where received messages are
+     * stored, and the index used for searching it. The directory can be set
+     * with -Dchat.historyDir, by default it is .chatclient/history in the
+     * home directory.
+     */
+    private void openHistory() {
+        String dir = System.getProperty("chat.historyDir",
+                Paths.get(System.getProperty("user.home"), ".chatclient",
+                        "history").toString());
+        try {
+            journal = new MessageJournal(Paths.get(dir));
+            tcpClient.setJournal(journal);
+            // The saved index segments are mapped, only the newest
+            // messages are indexed again
+            index = new MessageIndex(Paths.get(dir, "index"));
+            index.follow(journal);
+            // Start with the latest page, the rest is loaded on demand
+            sessionStart = journal.getEndPosition();
+            pager = new HistoryPager(journal, HISTORY_PAGE_SIZE);
+            loadOlderHistory();
+        } catch (IOException e) {
+            System.err.println("Message history disabled: " + e.getMessage());
+            searchInput.setDisable(true);
+            searchPane.setDisable(true);
+        }
+    }
+
+    /**
+     * Record the traffic to the file given with -Dchat.capture, to replay it
+     * later with WireReplay. Off by default.
+     */
+    private void startCapture() {
+        String file = System.getProperty("chat.capture");
+        if (file == null) {
+            return;
+        }
+        try {
+            WireRecorder recorder = new WireRecorder(Paths.get(file));
+            tcpClient.setWireRecorder(recorder);
+            // The recorder buffers, write the rest when the application exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    System.err.println("Could not save the recorded "
+                            + "traffic: " + e.getMessage());
+                }
+            }));
+        } catch (IOException e) {
+            System.err.println("Traffic recording disabled: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Publish the client's metrics through JMX, and as text on
+     * http://localhost:port/metrics when a port is given with
+     * -Dchat.metricsPort.
+     */
+    private void startMetrics() {
+        try {
+            tcpClient.getMetrics().registerMBean(
+                    "no.ntnu.datakomm:type=ChatClient");
+        } catch (JMException e) {
+            System.err.println("Metrics not available through JMX: "
+                    + e.getMessage());
+        }
+        Integer port = Integer.getInteger("chat.metricsPort");
+        if (port != null) {
+            try {
+                new MetricsHttpServer(tcpClient.getMetrics(), port);
+            } catch (IOException e) {
+                System.err.println("Could not serve the metrics: "
+                        + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Set up keyboard and mouse event handlers.
      */
@@ -115,6 +258,10 @@ public class GUIController implements ChatListener {
             // "Authorize" button clicked
             // TODO - Step 3: call facade method(s) for login
         });
+        searchInput.setOnAction(event -> {
+            // Enter pressed in the search box
+            searchHistory(searchInput.getText());
+        });
         helpBtn.setOnMouseClicked(event -> {
             // "Help" button clicked
             // TODO - Step 8: call facade methods for supported command list
@@ -135,7 +282,102 @@ public class GUIController implements ChatListener {
     }
 
     /**
-     * Add a message to the GUI chat window.
+     * Load the next older page of the history into the top of the chat
+     * window. Called on the GUI thread, when the first row becomes visible.
+     */
+    private void loadOlderHistory() {
+        if (pager == null || loadingHistory || historyComplete
+                || textOutput.getItems().size() >= MAX_SCROLLBACK) {
+            return;
+        }
+        loadingHistory = true;
+        pager.olderPage().whenComplete((page, error)
+                -> guiUpdates.runOnPulse(() -> showOlderEntries(page, error)));
+    }
+
+    /**
+     * Put a page of older messages at the top of the chat window, keeping
+     * the rows the user is looking at in place. Called on the GUI thread.
+     *
+     * @param page The messages, oldest first, null on error
+     * @param error Why the page could not be read, null on success
+     */
+    private void showOlderEntries(List<JournalEntry> page, Throwable error) {
+        loadingHistory = false;
+        if (error != null) {
+            System.err.println("Could not read history: " + error.getMessage());
+            historyComplete = true;
+            return;
+        }
+        if (page.isEmpty()) {
+            historyComplete = true;
+            return;
+        }
+        List<ChatEntry> entries = new ArrayList<>(page.size());
+        for (JournalEntry entry : page) {
+            entries.add(new ChatEntry(entry.getMessage(), false, false, false,
+                    entry.getPosition()));
+        }
+        ObservableList<ChatEntry> items = textOutput.getItems();
+        items.addAll(0, entries);
+        // The user is at the top, rows go at the bottom if too many
+        trimAroundView(entries.size());
+        if (historyPagesShown++ == 0) {
+            textOutput.scrollTo(items.size() - 1);
+        } else {
+            textOutput.scrollTo(entries.size());
+        }
+    }
+
+    /**
+     * Search the message history and show the newest matches in the search
+     * results, apart from the chat window. The search and the reading run
+     * on the search thread; a new search supersedes the one before.
+     *
+     * @param query The query, for example "sender:alice deploy"
+     */
+    private void searchHistory(String query) {
+        if (index == null || query.trim().isEmpty()) {
+            return;
+        }
+        int number = ++searchNumber;
+        searchPane.setText("Searching \"" + query + "\"...");
+        searcher.execute(() -> {
+            if (number != searchNumber) {
+                return;
+            }
+            long[] positions = index.search(query, SEARCH_LIMIT);
+            List<ChatEntry> found = new ArrayList<>(positions.length);
+            JournalReader reader = journal.openReader();
+            try {
+                // Newest first from the index, show them oldest first
+                for (int i = positions.length - 1;
+                        i >= 0 && number == searchNumber; --i) {
+                    reader.seek(positions[i]);
+                    JournalEntry entry = reader.next();
+                    if (entry != null) {
+                        found.add(new ChatEntry(entry.getMessage(), false,
+                                false, false, entry.getPosition()));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read history: "
+                        + e.getMessage());
+            }
+            guiUpdates.runOnPulse(() -> {
+                if (number == searchNumber) {
+                    searchPane.setText("Search \"" + query + "\": "
+                            + found.size() + " messages");
+                    searchResults.getItems().setAll(found);
+                    searchResults.scrollTo(found.size() - 1);
+                }
+            });
+        });
+    }
+
+    /**
+     * Add a message to the GUI chat window. The message is shown on the next
+     * frame; this method can be called on any thread.
      *
      * @param local When true, this message was sent by us. When false -
      * received from another user
@@ -146,56 +388,137 @@ public class GUIController implements ChatListener {
      * message.
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
+        boolean failed = false;
+        if (local && !warning && !tcpClient.isConnectionActive()) {
+            failed = true;
+            guiUpdates.runOnPulse(() -> serverStatus.setText(
+                    "Please login to send messages to server"));
+        }
+        guiUpdates.addEntry(new ChatEntry(msg, local, warning, failed));
+    }
+
+    /**
+     * Add the entries collected during one frame to the chat window, with a
+     * single change of the list. When the window shows the newest row, it
+     * scrolls to the new ones and only the last MAX_SCROLLBACK entries are
+     * kept. When the user has scrolled up, the rows they look at stay in
+     * place and up to MAX_ROWS entries are kept.
+     *
+     * @param entries The entries, oldest first
+     */
+    private void showEntries(List<ChatEntry> entries) {
+        ObservableList<ChatEntry> items = textOutput.getItems();
+        if (!isScrolledToBottom()) {
+            int firstShown = firstVisibleRow();
+            items.addAll(entries);
+            trimAroundView(firstShown);
+            return;
+        }
+        if (entries.size() > MAX_SCROLLBACK) {
+            entries = entries.subList(entries.size() - MAX_SCROLLBACK,
+                    entries.size());
+        }
+        int overflow = items.size() + entries.size() - MAX_SCROLLBACK;
+        if (overflow >= items.size()) {
+            items.setAll(entries);
+            dropLoadedHistory();
         } else {
-            senderText = msg.getSender() + ":";
+            if (overflow > 0) {
+                items.remove(0, overflow);
+                dropLoadedHistory();
+            }
+            items.addAll(entries);
         }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
-        if (warning) {
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
-            } else {
-                textStyle.add("info");
+        textOutput.scrollTo(items.size() - 1);
+    }
+
+    /**
+     * @return True when the chat window shows its last row, or everything
+     * fits without scrolling
+     */
+    private boolean isScrolledToBottom() {
+        if (chatScrollBar == null) {
+            // Created by the skin of the list, once it is shown
+            for (Node node : textOutput.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node)
+                        .getOrientation() == Orientation.VERTICAL) {
+                    chatScrollBar = (ScrollBar) node;
+                }
             }
-        } else {
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    serverStatus.setText(
-                            "Please login to send messages to server");
-                    textStyle.add("failedMessage");
+            if (chatScrollBar == null) {
+                return true;
+            }
+        }
+        return !chatScrollBar.isVisible()
+                || chatScrollBar.getValue() >= chatScrollBar.getMax() - 1e-6;
+    }
+
+    /**
+     * Keep at most MAX_ROWS rows in the chat window while the user is not at
+     * the bottom. The rows are dropped at the end further from the rows the
+     * user looks at, and those rows stay in place.
+     *
+     * @param firstShown Index of the first row the user looks at
+     */
+    private void trimAroundView(int firstShown) {
+        ObservableList<ChatEntry> items = textOutput.getItems();
+        int excess = items.size() - MAX_ROWS;
+        if (excess <= 0) {
+            return;
+        }
+        if (firstShown > items.size() - firstShown) {
+            int removed = Math.min(excess, firstShown);
+            items.remove(0, removed);
+            textOutput.scrollTo(firstShown - removed);
+            dropLoadedHistory();
+            excess -= removed;
+        }
+        if (excess > 0) {
+            // Still in the journal, the search finds them
+            items.remove(items.size() - excess, items.size());
+        }
+    }
+
+    /**
+     * @return Index of the first row shown in the chat window
+     */
+    private int firstVisibleRow() {
+        int first = -1;
+        for (Node node : textOutput.lookupAll(".list-cell")) {
+            if (node instanceof ListCell && node.isVisible()) {
+                ListCell<?> cell = (ListCell<?>) node;
+                // Cells above the view are laid out at negative positions
+                if (!cell.isEmpty() && cell.getIndex() >= 0
+                        && cell.getBoundsInParent().getMaxY() > 0
+                        && (first < 0 || cell.getIndex() < first)) {
+                    first = cell.getIndex();
                 }
-                messageContent.getChildren().addAll(messageText);
-                // Add empty space first (left), then the message (right)
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                messageContent.getChildren().addAll(messageSender, messageText);
-                // Add message first (left), then empty space (right)
-                message.getChildren().addAll(messageContent, spacer);
             }
         }
-        textOutput.getChildren().add(message);
+        return Math.max(first, 0);
+    }
+
+    /**
+     * Older rows were removed from the chat window: continue paging the
+     * history before the oldest history message still shown. Messages
+     * received in this session that were removed are not loaded again, the
+     * search finds them.
+     */
+    private void dropLoadedHistory() {
+        if (pager == null) {
+            return;
+        }
+        for (ChatEntry entry : textOutput.getItems()) {
+            if (entry.getPosition() >= 0) {
+                pager.seek(entry.getPosition());
+                historyComplete = false;
+                return;
+            }
+        }
+        // No history left in the window: page from where the session
+        // started
+        pager.seek(sessionStart);
+        historyComplete = false;
     }
 
     /**
@@ -215,7 +538,7 @@ public class GUIController implements ChatListener {
                 // Connection established, start listening processes
                 tcpClient.addListener(this);
                 tcpClient.startListenThread();
-                startUserPolling();
+                startPresence();
             }
             // TODO - Step 4: update update button state according to connection status
         });
@@ -262,38 +585,16 @@ public class GUIController implements ChatListener {
     // from the server.
     ///////////////////////////////////////////////////////////////////////
     /**
-     * Start a new thread that will poll the server for currently active users
+     * Start following the user list: the server tells about users who join
+     * and leave if it can, otherwise the list is polled
      */
-    private void startUserPolling() {
-        // Make sure we have just one polling thread, not duplicates
-        if (userPollThread == null) {
-
-            userPollThread = new Thread(() -> {
-                ////////////////////////////////////////////////////////////////
-                // This block of code will run in the polling thread
-                ////////////////////////////////////////////////////////////////
-                long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
-                    // TODO - Step 5: ask the server for current user list
-                    try {
-                        sleep(3000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                System.out.println("User polling thread " + threadId
-                        + " exiting...");
-                // Make sure we start the thread again next time
-                userPollThread = null;
-                ////////////////////////////////////////////////////////////////
-                // EOF polling thread code
-                ////////////////////////////////////////////////////////////////
-            });
-
-            userPollThread.start();
+    private void startPresence() {
+        // Make sure we have just one monitor, not duplicates
+        if (presence != null) {
+            presence.stop();
         }
+        presence = new PresenceMonitor(tcpClient);
+        presence.start();
     }
 
     /**
@@ -308,8 +609,8 @@ public class GUIController implements ChatListener {
     @Override
     public void onLoginResult(boolean success, String errMsg) {
         // This method is called in a background thread. 
-        // To update GUI elements, we must use Platform.runLater()
-        Platform.runLater(() -> {
+        // GUI elements are updated on the GUI thread, at the next frame
+        guiUpdates.runOnPulse(() -> {
             // TODO - Step 3: update status text according to login result: success or failure
             // TODO - Step 3: add message to chat window, if necessary
         });
@@ -322,9 +623,20 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageReceived(TextMessage message) {
-        Platform.runLater(() -> {
-            // TODO - Step 7: show the incoming message in GUI
-        });
+        addMsgToGui(false, message, false);
+    }
+
+    /**
+     * This method is called with all the text messages received in one read
+     * from the socket.
+     *
+     * @param messages The messages, oldest first
+     */
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        for (TextMessage message : messages) {
+            addMsgToGui(false, message, false);
+        }
     }
 
     /**
@@ -335,7 +647,7 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageError(String errMsg) {
-        Platform.runLater(() -> {
+        guiUpdates.runOnPulse(() -> {
             // TODO - Step 7: show the error message in GUI
         });
     }
@@ -348,21 +660,82 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
-        // Update user list in GUI thread
-        Platform.runLater(() -> {
-            // Clear the user list, add items with onClick listener on each item
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
+        // Update user list in GUI thread. When several lists arrive within
+        // one frame, only the latest is shown
+        guiUpdates.setUserList(usernames);
+    }
+
+    /**
+     * Show a list of users. Called on the GUI thread. The list is kept
+     * sorted, and only the users who joined or left since the last list are
+     * inserted or removed.
+     *
+     * @param usernames
+     */
+    private void showUserList(String[] usernames) {
+        String[] sorted = usernames.clone();
+        Arrays.sort(sorted);
+        ObservableList<String> items = userList.getItems();
+        int i = 0;
+        int j = 0;
+        while (j < sorted.length) {
+            if (i == items.size()) {
+                items.addAll(Arrays.asList(sorted).subList(j, sorted.length));
+                return;
+            }
+            int diff = items.get(i).compareTo(sorted[j]);
+            if (diff == 0) {
+                ++i;
+                ++j;
+            } else if (diff < 0) {
+                // Users before sorted[j] that are not in the new list left
+                int end = i + 1;
+                while (end < items.size()
+                        && items.get(end).compareTo(sorted[j]) < 0) {
+                    ++end;
+                }
+                items.remove(i, end);
+            } else {
+                // New users before items[i] joined
+                int end = j + 1;
+                while (end < sorted.length
+                        && items.get(i).compareTo(sorted[end]) > 0) {
+                    ++end;
+                }
+                items.addAll(i, Arrays.asList(sorted).subList(j, end));
+                i += end - j;
+                j = end;
+            }
+        }
+        if (i < items.size()) {
+            items.remove(i, items.size());
+        }
+    }
+
+    /**
+     * Create one row of the user list. Clicking it starts a private message
+     * to that user. The list reuses the rows while scrolling.
+     *
+     * @return The row
+     */
+    private ListCell<String> createUserCell() {
+        ListCell<String> cell = new ListCell<String>() {
+            @Override
+            protected void updateItem(String user, boolean empty) {
+                super.updateItem(user, empty);
+                setText(empty ? null : user);
+            }
+        };
+        cell.getStyleClass().add("user");
+        cell.setOnMouseClicked(event -> {
+            String user = cell.getItem();
+            if (user != null) {
+                textInput.setText("/privmsg " + user + " ");
+                textInput.requestFocus();
+                textInput.end();
             }
         });
+        return cell;
     }
 
     /**
@@ -374,13 +747,11 @@ public class GUIController implements ChatListener {
     @Override
     public void onSupportedCommands(String[] commands) {
         // Show the supported commands in the GUI as "warning/info" messages
-        Platform.runLater(() -> {
-            String cmds = "Commands available: ";
-            for (String c : commands) {
-                cmds += c + " ";
-            }
-            addMsgToGui(true, new TextMessage("info", false, cmds), true);
-        });
+        String cmds = "Commands available: ";
+        for (String c : commands) {
+            cmds += c + " ";
+        }
+        addMsgToGui(true, new TextMessage("info", false, cmds), true);
     }
 
     /**
@@ -391,10 +762,8 @@ public class GUIController implements ChatListener {
     @Override
     public void onCommandError(String errMsg) {
         // Show the error in the GUI as a "warning" message
-        Platform.runLater(() -> {
-            TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
-            addMsgToGui(true, msg, true);
-        });
+        TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
+        addMsgToGui(true, msg, true);
     }
 
     /**
@@ -0,0 +1,92 @@
+package no.ntnu.datakomm.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javafx.animation.AnimationTimer;
+
+/**
+ * Collects GUI updates coming from background threads and applies them once
+ * per JavaFX pulse, instead of posting one Platform.runLater() per event.
+ * Chat entries that arrived during a frame are added to the window in one
+ * go, and of several user lists only the latest one is shown.
+ */
+class GuiUpdateCoalescer extends AnimationTimer {
+
+    private final Queue<ChatEntry> pendingEntries
+            = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<String[]> pendingUserList
+            = new AtomicReference<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    private final Consumer<List<ChatEntry>> entrySink;
+    private final Consumer<String[]> userListSink;
+
+    /**
+     * @param entrySink Adds a batch of entries to the chat window
+     * @param userListSink Shows a user list
+     */
+    GuiUpdateCoalescer(Consumer<List<ChatEntry>> entrySink,
+            Consumer<String[]> userListSink) {
+        this.entrySink = entrySink;
+        this.userListSink = userListSink;
+    }
+
+    /**
+     * Add an entry to the chat window on the next pulse. Can be called on any
+     * thread.
+     *
+     * @param entry The entry
+     */
+    void addEntry(ChatEntry entry) {
+        pendingEntries.add(entry);
+    }
+
+    /**
+     * Show a user list on the next pulse, replacing any list that is still
+     * waiting. Can be called on any thread.
+     *
+     * @param usernames The users
+     */
+    void setUserList(String[] usernames) {
+        pendingUserList.set(usernames);
+    }
+
+    /**
+     * Run a GUI update on the next pulse, before the entries are added. Can
+     * be called on any thread.
+     *
+     * @param task The update
+     */
+    void runOnPulse(Runnable task) {
+        pendingTasks.add(task);
+    }
+
+    /**
+     * Called by JavaFX on the application thread once per frame.
+     *
+     * @param now Time stamp of the frame
+     */
+    @Override
+    public void handle(long now) {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+        String[] usernames = pendingUserList.getAndSet(null);
+        if (usernames != null) {
+            userListSink.accept(usernames);
+        }
+        if (!pendingEntries.isEmpty()) {
+            List<ChatEntry> entries = new ArrayList<>();
+            ChatEntry entry;
+            while ((entry = pendingEntries.poll()) != null) {
+                entries.add(entry);
+            }
+            entrySink.accept(entries);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.history;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the journal forces written messages from the page cache to
+ * the disk. Forcing protects the history against a crash of the machine
+ * (not only of the program), at the cost of disk writes.
+ */
+public final class FsyncPolicy {
+
+    private static final FsyncPolicy NEVER = new FsyncPolicy(-1);
+    private static final FsyncPolicy EVERY_BATCH = new FsyncPolicy(0);
+
+    // -1: never, 0: after every batch, else the interval
+    private final long intervalNanos;
+
+    private FsyncPolicy(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Leave it to the operating system to write the pages. Messages survive
+     * a crash of the program, but not of the machine. This is the default.
+     *
+     * @return The policy
+     */
+    public static FsyncPolicy never() {
+        return NEVER;
+    }
+
+    /**
+     * Force after every batch of messages the writer takes from its queue.
+     *
+     * @return The policy
+     */
+    public static FsyncPolicy everyBatch() {
+        return EVERY_BATCH;
+    }
+
+    /**
+     * Force at most once per interval, if something was written.
+     *
+     * @param millis The interval
+     * @return The policy
+     */
+    public static FsyncPolicy everyMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        return new FsyncPolicy(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    boolean isNever() {
+        return intervalNanos < 0;
+    }
+
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    @Override
+    public String toString() {
+        if (this == NEVER) {
+            return "never";
+        } else if (this == EVERY_BATCH) {
+            return "every batch";
+        } else {
+            return "every " + intervalNanos / 1000000 + "ms";
+        }
+    }
+}
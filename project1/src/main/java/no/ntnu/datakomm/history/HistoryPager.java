@@ -0,0 +1,100 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads the history backward from the end of the journal, one page at a
+ * time, so a view can start with the latest messages and load older ones
+ * only when the user scrolls up. While a page is shown the next older one is
+ * already read in the background.
+ *
+ * The pages are read on a thread of the pager; the futures complete there.
+ */
+public class HistoryPager implements AutoCloseable {
+
+    private final JournalReader reader;
+    private final int pageSize;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            r -> {
+                Thread t = new Thread(r, "chat-history-pager");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // The next older page, being read or ready. Guarded by this.
+    private CompletableFuture<List<JournalEntry>> prefetched;
+
+    /**
+     * @param journal The journal. Paging starts at its current end, later
+     * messages are not part of the history.
+     * @param pageSize Number of messages per page
+     */
+    public HistoryPager(MessageJournal journal, int pageSize) {
+        this.reader = journal.openReader();
+        this.pageSize = pageSize;
+        reader.seek(journal.getEndPosition());
+    }
+
+    /**
+     * Get the page before the previous one (the latest page on the first
+     * call), and start reading the page after it.
+     *
+     * @return The messages of the page, oldest first. Empty when the start of
+     * the journal has been reached.
+     */
+    public synchronized CompletableFuture<List<JournalEntry>> olderPage() {
+        CompletableFuture<List<JournalEntry>> page
+                = prefetched != null ? prefetched : load();
+        prefetched = load();
+        return page;
+    }
+
+    private CompletableFuture<List<JournalEntry>> load() {
+        return CompletableFuture.supplyAsync(this::readPage, loader);
+    }
+
+    /**
+     * Runs on the loader thread.
+     */
+    private List<JournalEntry> readPage() {
+        List<JournalEntry> page = new ArrayList<>(pageSize);
+        try {
+            JournalEntry entry;
+            while (page.size() < pageSize
+                    && (entry = reader.previous()) != null) {
+                page.add(entry);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * Continue paging before the given position, for example when the view
+     * has dropped the pages it loaded.
+     *
+     * @param position Position of a record, or the end of the journal
+     */
+    public synchronized void seek(long position) {
+        // Tasks run in order: a page being read finishes, then the seek
+        prefetched = null;
+        loader.execute(() -> reader.seek(position));
+    }
+
+    /**
+     * Stop the loader thread.
+     */
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+}
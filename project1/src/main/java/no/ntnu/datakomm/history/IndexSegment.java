@@ -0,0 +1,565 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable part of the MessageIndex: the posting lists of the messages
+ * in one range of journal positions. Segments do not overlap, so segments
+ * next to each other can be merged by joining their lists.
+ *
+ * A segment is kept in the same form in memory and in a file:
+ *
+ * [magic][int message count][long first position][long last position]
+ * [int term count][int entry offset, per term, sorted by term]
+ * [entries: int term length, term (UTF-8), posting list]
+ *
+ * A term is found by binary search over the offsets. A segment saved to a
+ * file is memory-mapped, so it takes no heap however many messages it has.
+ */
+final class IndexSegment {
+
+    static final String PREFIX = "index-";
+    static final String SUFFIX = ".idx";
+
+    private static final byte[] MAGIC = {'C', 'H', 'A', 'T', 'I', 'D', 'X',
+        '1'};
+    // Magic, message count, first and last position, term count
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+
+    // Only read with absolute gets or through duplicates, so that several
+    // threads can search at once
+    private final ByteBuffer data;
+    private final int messageCount;
+    private final long firstPosition;
+    private final long lastPosition;
+    private final int termCount;
+    // The file of a saved segment, null if it only lives in memory
+    private final Path file;
+
+    private IndexSegment(ByteBuffer data, Path file) {
+        this.data = data;
+        this.file = file;
+        messageCount = data.getInt(8);
+        firstPosition = data.getLong(12);
+        lastPosition = data.getLong(20);
+        termCount = data.getInt(28);
+    }
+
+    /**
+     * Build a segment in memory.
+     *
+     * @param postings Posting list of every term
+     * @param messageCount Number of messages indexed
+     * @param firstPosition Position of the first message
+     * @param lastPosition Position of the last message
+     * @return The segment
+     */
+    static IndexSegment build(Map<String, PostingList> postings,
+            int messageCount, long firstPosition, long lastPosition) {
+        int count = postings.size();
+        byte[][] terms = new byte[count][];
+        PostingList[] lists = new PostingList[count];
+        long size = HEADER_SIZE + 4L * count;
+        int i = 0;
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            terms[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            lists[i] = entry.getValue();
+            size += 4 + terms[i].length + lists[i].getStoredSize();
+            ++i;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Index segment too large");
+        }
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(terms[a], terms[b]));
+
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.put(MAGIC).putInt(messageCount).putLong(firstPosition)
+                .putLong(lastPosition).putInt(count);
+        int offset = HEADER_SIZE + 4 * count;
+        for (i = 0; i < count; ++i) {
+            out.putInt(offset);
+            int t = order[i];
+            offset += 4 + terms[t].length + lists[t].getStoredSize();
+        }
+        for (i = 0; i < count; ++i) {
+            int t = order[i];
+            out.putInt(terms[t].length).put(terms[t]);
+            lists[t].writeTo(out);
+        }
+        out.clear();
+        return new IndexSegment(out, null);
+    }
+
+    /**
+     * Compare terms as unsigned bytes, the order they are stored in.
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @param term The term
+     * @return Positions of the messages with the term, null if none
+     */
+    PostingList get(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = data.getInt(HEADER_SIZE + 4 * mid);
+            int diff = compareAt(offset, key);
+            if (diff < 0) {
+                low = mid + 1;
+            } else if (diff > 0) {
+                high = mid - 1;
+            } else {
+                ByteBuffer in = data.duplicate();
+                in.position(offset + 4 + key.length);
+                return PostingList.readFrom(in);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compare the term stored at an offset with a key.
+     */
+    private int compareAt(int offset, byte[] key) {
+        int length = data.getInt(offset);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; ++i) {
+            int diff = (data.get(offset + 4 + i) & 0xFF) - (key[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    long getFirstPosition() {
+        return firstPosition;
+    }
+
+    long getLastPosition() {
+        return lastPosition;
+    }
+
+    int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * Merge segments that follow each other in the journal. The terms of
+     * the inputs are read in order, side by side, and every merged entry is
+     * written as soon as it is known: the posting lists are joined as they
+     * are stored, only the first difference of each list after the first is
+     * encoded again. Nothing but a few small buffers is taken from the heap
+     * when the result goes to a file.
+     *
+     * @param segments The segments, oldest first
+     * @param directory Where to save the merged segment, null to keep it in
+     * memory
+     * @return One segment with all their messages
+     * @throws IOException when the merged segment cannot be written
+     */
+    static IndexSegment merge(List<IndexSegment> segments, Path directory)
+            throws IOException {
+        // First pass: only measure
+        long[] totals = mergeTerms(segments, null, null);
+        long termCount = totals[0];
+        long size = HEADER_SIZE + 4 * termCount + totals[1];
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Index segment too large");
+        }
+        int messages = 0;
+        for (IndexSegment segment : segments) {
+            messages += segment.messageCount;
+        }
+        long first = segments.get(0).firstPosition;
+        long last = segments.get(segments.size() - 1).lastPosition;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(messages).putLong(first).putLong(last)
+                .putInt((int) termCount);
+        header.flip();
+
+        if (directory == null) {
+            ByteBuffer out = ByteBuffer.allocate((int) size);
+            mergeTerms(segments, new Region(null, out, HEADER_SIZE),
+                    new Region(null, out, HEADER_SIZE + 4 * termCount));
+            out.put(header);
+            out.clear();
+            return new IndexSegment(out, null);
+        }
+        Path target = fileFor(directory, first, last);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            mergeTerms(segments, new Region(channel, null, HEADER_SIZE),
+                    new Region(channel, null, HEADER_SIZE + 4 * termCount));
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        return publish(temp, target);
+    }
+
+    /**
+     * Go through the terms of segments in order and join the entries of
+     * equal terms.
+     *
+     * @param offsets Where the offsets of the entries are written, null to
+     * only measure
+     * @param entries Where the entries are written, null to only measure
+     * @return Number of terms and size of the entries in bytes
+     */
+    private static long[] mergeTerms(List<IndexSegment> segments,
+            Region offsets, Region entries) throws IOException {
+        int n = segments.size();
+        TermCursor[] cursors = new TermCursor[n];
+        int[] matching = new int[n];
+        for (int i = 0; i < n; ++i) {
+            cursors[i] = new TermCursor(segments.get(i));
+            cursors[i].advance();
+        }
+        long termCount = 0;
+        long entriesSize = 0;
+        int entriesStart = (int) (entries != null ? entries.position : 0);
+        while (true) {
+            // The cursors on the smallest term
+            TermCursor smallest = null;
+            int m = 0;
+            for (int i = 0; i < n; ++i) {
+                if (cursors[i].atEnd()) {
+                    continue;
+                }
+                int diff = smallest == null ? -1
+                        : cursors[i].compareTerm(smallest);
+                if (diff < 0) {
+                    smallest = cursors[i];
+                    m = 0;
+                }
+                if (diff <= 0) {
+                    matching[m++] = i;
+                }
+            }
+            if (smallest == null) {
+                if (entries != null) {
+                    offsets.flush();
+                    entries.flush();
+                }
+                return new long[]{termCount, entriesSize};
+            }
+            int count = 0;
+            long dataLength = 0;
+            long previousLast = 0;
+            for (int j = 0; j < m; ++j) {
+                TermCursor c = cursors[matching[j]];
+                count += c.count;
+                dataLength += c.dataLength;
+                if (j > 0) {
+                    dataLength += varintLength(c.firstPosition - previousLast)
+                            - c.firstLength;
+                }
+                previousLast = c.last;
+            }
+            if (entries != null) {
+                offsets.putInt((int) (entriesStart + entriesSize));
+                entries.putInt(smallest.termLength);
+                entries.put(smallest.segment.data, smallest.offset + 4,
+                        smallest.termLength);
+                entries.putInt(count);
+                entries.putLong(previousLast);
+                entries.putInt((int) dataLength);
+                for (int j = 0; j < m; ++j) {
+                    TermCursor c = cursors[matching[j]];
+                    if (j == 0) {
+                        entries.put(c.segment.data, c.dataOffset,
+                                c.dataLength);
+                    } else {
+                        TermCursor before = cursors[matching[j - 1]];
+                        entries.putVarint(c.firstPosition - before.last);
+                        entries.put(c.segment.data,
+                                c.dataOffset + c.firstLength,
+                                c.dataLength - c.firstLength);
+                    }
+                }
+            }
+            ++termCount;
+            entriesSize += 4 + smallest.termLength + 16 + dataLength;
+            for (int j = 0; j < m; ++j) {
+                cursors[matching[j]].advance();
+            }
+        }
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            ++length;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the entries of a segment in term order, for merging.
+     */
+    private static final class TermCursor {
+
+        final IndexSegment segment;
+        int index = -1;
+        // The current entry
+        int offset;
+        int termLength;
+        int count;
+        long last;
+        int dataLength;
+        int dataOffset;
+        // The first position, stored as a difference to 0, and its length
+        long firstPosition;
+        int firstLength;
+
+        TermCursor(IndexSegment segment) {
+            this.segment = segment;
+        }
+
+        boolean atEnd() {
+            return index >= segment.termCount;
+        }
+
+        void advance() {
+            if (++index >= segment.termCount) {
+                return;
+            }
+            ByteBuffer data = segment.data;
+            offset = data.getInt(HEADER_SIZE + 4 * index);
+            termLength = data.getInt(offset);
+            int list = offset + 4 + termLength;
+            count = data.getInt(list);
+            last = data.getLong(list + 4);
+            dataLength = data.getInt(list + 12);
+            dataOffset = list + 16;
+            firstPosition = 0;
+            firstLength = 0;
+            byte b;
+            do {
+                b = data.get(dataOffset + firstLength);
+                firstPosition |= (long) (b & 0x7F) << (7 * firstLength);
+                ++firstLength;
+            } while (b < 0);
+        }
+
+        /**
+         * Compare the current terms as unsigned bytes.
+         */
+        int compareTerm(TermCursor other) {
+            ByteBuffer a = segment.data;
+            ByteBuffer b = other.segment.data;
+            int n = Math.min(termLength, other.termLength);
+            for (int i = 0; i < n; ++i) {
+                int diff = (a.get(offset + 4 + i) & 0xFF)
+                        - (b.get(other.offset + 4 + i) & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return termLength - other.termLength;
+        }
+    }
+
+    /**
+     * A part of a segment that is written from start to end, through a
+     * small buffer, to a file or to a buffer holding the whole segment.
+     */
+    private static final class Region {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer target;
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        // Where the chunk goes
+        long position;
+
+        /**
+         * @param channel The file, or null
+         * @param target The buffer, if there is no file
+         * @param position Where the region starts
+         */
+        Region(FileChannel channel, ByteBuffer target, long position) {
+            this.channel = channel;
+            this.target = target != null ? target.duplicate() : null;
+            this.position = position;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            chunk.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            chunk.putLong(value);
+        }
+
+        void putVarint(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                chunk.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            chunk.put((byte) value);
+        }
+
+        /**
+         * Copy bytes, however many, from a buffer.
+         */
+        void put(ByteBuffer source, int offset, int length)
+                throws IOException {
+            ByteBuffer in = source.duplicate();
+            in.position(offset);
+            int end = offset + length;
+            while (in.position() < end) {
+                if (!chunk.hasRemaining()) {
+                    flush();
+                }
+                in.limit(Math.min(end, in.position() + chunk.remaining()));
+                chunk.put(in);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (chunk.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            chunk.flip();
+            if (channel != null) {
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            } else {
+                target.position((int) position);
+                target.put(chunk);
+                position = target.position();
+            }
+            chunk.clear();
+        }
+    }
+
+    /**
+     * Write the segment to a file in a directory and map it. The file only
+     * appears under its name once it is complete.
+     *
+     * @param directory Where the index files are
+     * @return The same segment, read from the file
+     * @throws IOException when the file cannot be written
+     */
+    IndexSegment save(Path directory) throws IOException {
+        Path target = fileFor(directory, firstPosition, lastPosition);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer out = data.duplicate();
+            out.clear();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        }
+        return publish(temp, target);
+    }
+
+    /**
+     * @return The file of the segment with the given positions
+     */
+    private static Path fileFor(Path directory, long firstPosition,
+            long lastPosition) {
+        return directory.resolve(String.format("%s%020d-%020d%s",
+                PREFIX, firstPosition, lastPosition, SUFFIX));
+    }
+
+    /**
+     * Give a complete temporary file its name and map it.
+     */
+    private static IndexSegment publish(Path temp, Path target)
+            throws IOException {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return load(target);
+    }
+
+    /**
+     * Map a saved segment.
+     *
+     * @param file The file
+     * @return The segment
+     * @throws IOException when the file cannot be read or is not a segment
+     */
+    static IndexSegment load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        boolean valid = data.capacity() >= HEADER_SIZE;
+        for (int i = 0; valid && i < MAGIC.length; ++i) {
+            valid = data.get(i) == MAGIC[i];
+        }
+        if (!valid || data.getInt(28) < 0
+                || HEADER_SIZE + 4L * data.getInt(28) > data.capacity()) {
+            throw new IOException("Not an index segment: " + file);
+        }
+        return new IndexSegment(data, file);
+    }
+
+    /**
+     * Delete the file of a saved segment that was merged into another one.
+     * The mapping stays readable for searches that still use the segment.
+     */
+    void delete() {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left over, dropped as covered by the merged segment on the
+            // next start
+            System.err.println("Index: could not delete " + file + ": "
+                    + e.getMessage());
+        }
+    }
+}
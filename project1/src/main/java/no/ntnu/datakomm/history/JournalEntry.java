@@ -0,0 +1,44 @@
+package no.ntnu.datakomm.history;
+
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * A message read back from the journal.
+ */
+public class JournalEntry {
+
+    private final long position;
+    private final long timestampMillis;
+    private final TextMessage message;
+
+    /**
+     * @param position Position of the record in the journal, unique and
+     * increasing: it serves as the id of the message
+     * @param timestampMillis When the message was received, as
+     * System.currentTimeMillis()
+     * @param message The message
+     */
+    public JournalEntry(long position, long timestampMillis,
+            TextMessage message) {
+        this.position = position;
+        this.timestampMillis = timestampMillis;
+        this.message = message;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return position + "@" + timestampMillis + " " + message;
+    }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * Walks the records of a MessageJournal forward or backward, reading the
+ * segments through their own read-only mappings. Only complete records are
+ * seen, also while the writer is appending.
+ *
+ * A reader is not thread-safe; use one per thread.
+ */
+public class JournalReader {
+
+    private final MessageJournal journal;
+    private final int segmentSize;
+
+    private long position;
+    // The segment mapped at the moment, and its base position
+    private MappedByteBuffer segment;
+    private long segmentBase = -1;
+    // Decoding buffer, grown when needed
+    private byte[] scratch = new byte[256];
+
+    JournalReader(MessageJournal journal) {
+        this.journal = journal;
+        this.segmentSize = journal.getSegmentSize();
+        this.position = journal.getStartPosition();
+    }
+
+    /**
+     * Move to a position. The next call to next() returns the record at the
+     * position, previous() the record before it.
+     *
+     * @param position Position of a record, or the end position of the
+     * journal
+     */
+    public void seek(long position) {
+        this.position = Math.max(position, journal.getStartPosition());
+    }
+
+    /**
+     * @return The current position: the start of the record next() returns
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Read the record at the current position and move after it.
+     *
+     * @return The entry, null at the end of the journal
+     * @throws IOException when a segment cannot be read
+     */
+    public JournalEntry next() throws IOException {
+        while (position < journal.getEndPosition()) {
+            long base = position - position % segmentSize;
+            MappedByteBuffer buffer = segmentAt(base);
+            int offset = (int) (position - base);
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                // End of the data in this segment
+                position = base + segmentSize;
+                continue;
+            }
+            JournalEntry entry = decode(buffer, offset, length, position);
+            position += 4 + length + MessageJournal.TRAILER_SIZE;
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Read the record before the current position and move to its start.
+     *
+     * @return The entry, null at the start of the journal
+     * @throws IOException when a segment cannot be read
+     */
+    public JournalEntry previous() throws IOException {
+        while (position > journal.getStartPosition()) {
+            long base = position - position % segmentSize;
+            int offset = (int) (position - base);
+            if (offset == 0) {
+                // Continue at the data end of the previous segment
+                base -= segmentSize;
+                offset = segmentAt(base).getInt(
+                        segmentSize - MessageJournal.FOOTER_SIZE);
+                position = base + offset;
+                continue;
+            }
+            MappedByteBuffer buffer = segmentAt(base);
+            int length = buffer.getInt(offset - MessageJournal.TRAILER_SIZE);
+            int start = offset - MessageJournal.TRAILER_SIZE - length - 4;
+            position = base + start;
+            return decode(buffer, start, length, position);
+        }
+        return null;
+    }
+
+    private MappedByteBuffer segmentAt(long base) throws IOException {
+        if (base != segmentBase) {
+            try (FileChannel channel = FileChannel.open(
+                    journal.segmentPath(base), StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        segmentSize);
+            }
+            segmentBase = base;
+        }
+        return segment;
+    }
+
+    private JournalEntry decode(MappedByteBuffer buffer, int offset,
+            int length, long recordPosition) {
+        long timestamp = buffer.getLong(offset + 4);
+        boolean priv = (buffer.get(offset + 12)
+                & MessageJournal.FLAG_PRIVATE) != 0;
+        int senderLength = buffer.getShort(offset + 13) & 0xFFFF;
+        int bytes = length - (MessageJournal.HEADER_SIZE - 4);
+        if (scratch.length < bytes) {
+            scratch = new byte[Math.max(bytes, 2 * scratch.length)];
+        }
+        buffer.position(offset + MessageJournal.HEADER_SIZE);
+        buffer.get(scratch, 0, bytes);
+        String sender = new String(scratch, 0, senderLength,
+                StandardCharsets.UTF_8);
+        String text = new String(scratch, senderLength, bytes - senderLength,
+                StandardCharsets.UTF_8);
+        return new JournalEntry(recordPosition, timestamp,
+                new TextMessage(sender, priv, text));
+    }
+}
@@ -0,0 +1,581 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * Full-text index over the chat history. Every word of a message and its
+ * sender (as the term "sender:name") point to the message's position in the
+ * MessageJournal. A search finds the messages that have all the terms of a
+ * query, for example "sender:alice deploy".
+ *
+ * New messages go to an in-memory part. Every FLUSH_MESSAGES messages that
+ * part is frozen into an immutable segment with compressed posting lists, and
+ * a background thread merges MERGE_FACTOR segments of the same size into one,
+ * so a search looks at a few segments, not one per flush.
+ *
+ * An index opened with a directory saves every frozen segment there and
+ * maps it, so the segments take no heap. On the next start they are mapped
+ * again and follow() only indexes the messages after the last saved
+ * segment: at most FLUSH_MESSAGES, however long the history is. Without a
+ * directory the index lives in memory and follow() builds it from the whole
+ * journal.
+ *
+ * The directory belongs to the index of one journal, and is only used by
+ * one index at a time: keep it in the journal's directory.
+ */
+public class MessageIndex implements AutoCloseable {
+
+    public static final String SENDER_PREFIX = "sender:";
+    static final int FLUSH_MESSAGES = 65536;
+    static final int MERGE_FACTOR = 4;
+    private static final int MAX_TERM_LENGTH = 64;
+    // How long the indexer sleeps when it has caught up with the journal
+    private static final long IDLE_POLL_MILLIS = 50;
+
+    /**
+     * Growing list of positions for one term in the in-memory part.
+     */
+    private static final class PositionBuffer {
+
+        long[] positions = new long[4];
+        int size;
+
+        void add(long position) {
+            // A word used twice in a message is indexed once
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+
+    // Where the segments are saved, null to keep them in memory
+    private final Path directory;
+
+    // The in-memory part, guarded by this
+    private final Map<String, PositionBuffer> live = new HashMap<>();
+    private int liveCount = 0;
+    private long firstLivePosition = -1;
+    private long lastPosition = -1;
+    private final StringBuilder token = new StringBuilder();
+    private boolean mergeScheduled = false;
+    // Runs of this size class and above are no longer merged, because such
+    // a merge failed. Only used by the merge thread.
+    private int mergeLevelLimit = Integer.MAX_VALUE;
+
+    // Frozen segments, oldest first. Replaced as a whole, never modified.
+    private volatile List<IndexSegment> segments = Collections.emptyList();
+
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(
+            r -> {
+                Thread t = new Thread(r, "chat-index-merger");
+                t.setDaemon(true);
+                return t;
+            });
+    private volatile boolean open = true;
+    private volatile Thread indexer;
+
+    /**
+     * Create an index that lives in memory.
+     */
+    public MessageIndex() {
+        directory = null;
+    }
+
+    /**
+     * Open an index that saves its segments in a directory, with the
+     * segments saved there before.
+     *
+     * @param directory Where the segments are, created if needed
+     * @throws IOException when the directory cannot be read
+     */
+    public MessageIndex(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        segments = Collections.unmodifiableList(loadSegments(directory));
+        if (!segments.isEmpty()) {
+            lastPosition = segments.get(segments.size() - 1)
+                    .getLastPosition();
+        }
+    }
+
+    /**
+     * Map the saved segments, oldest first. A segment that is covered by
+     * another one was merged into it and is deleted, as are files left by
+     * a save that did not finish.
+     */
+    private static List<IndexSegment> loadSegments(Path directory)
+            throws IOException {
+        List<IndexSegment> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                IndexSegment.PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(IndexSegment.SUFFIX)) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                try {
+                    loaded.add(IndexSegment.load(file));
+                } catch (IOException e) {
+                    System.err.println("Index: ignoring " + name + ": "
+                            + e.getMessage());
+                }
+            }
+        }
+        // Largest first among segments that start at the same message
+        loaded.sort((a, b) -> a.getFirstPosition() != b.getFirstPosition()
+                ? Long.compare(a.getFirstPosition(), b.getFirstPosition())
+                : Long.compare(b.getLastPosition(), a.getLastPosition()));
+        List<IndexSegment> kept = new ArrayList<>();
+        for (IndexSegment segment : loaded) {
+            if (!kept.isEmpty() && segment.getFirstPosition()
+                    <= kept.get(kept.size() - 1).getLastPosition()) {
+                segment.delete();
+            } else {
+                kept.add(segment);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Index a message. Messages must be added in the order of their
+     * positions; a position that is not above the last one is ignored.
+     *
+     * @param position Position of the message in the journal
+     * @param message The message
+     */
+    public void add(long position, TextMessage message) {
+        IndexSegment frozen = addLive(position, message);
+        if (frozen != null) {
+            persist(frozen);
+        }
+    }
+
+    /**
+     * Add a message to the in-memory part.
+     *
+     * @return The segment the in-memory part was frozen into, if it was
+     */
+    private synchronized IndexSegment addLive(long position,
+            TextMessage message) {
+        if (position <= lastPosition) {
+            return null;
+        }
+        if (liveCount == 0) {
+            firstLivePosition = position;
+        }
+        lastPosition = position;
+        if (message.getSender() != null) {
+            addTerm(SENDER_PREFIX + message.getSender().toLowerCase(),
+                    position);
+        }
+        String text = message.getText();
+        if (text != null) {
+            token.setLength(0);
+            for (int i = 0; i < text.length(); ++i) {
+                char c = text.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    if (token.length() < MAX_TERM_LENGTH) {
+                        token.append(Character.toLowerCase(c));
+                    }
+                } else if (token.length() > 0) {
+                    addTerm(token.toString(), position);
+                    token.setLength(0);
+                }
+            }
+            if (token.length() > 0) {
+                addTerm(token.toString(), position);
+            }
+        }
+        if (++liveCount >= FLUSH_MESSAGES) {
+            return freeze();
+        }
+        return null;
+    }
+
+    private void addTerm(String term, long position) {
+        PositionBuffer buffer = live.get(term);
+        if (buffer == null) {
+            buffer = new PositionBuffer();
+            live.put(term, buffer);
+        }
+        buffer.add(position);
+    }
+
+    /**
+     * Turn the in-memory part into a segment, searchable right away. Called
+     * with the lock held.
+     *
+     * @return The segment, in memory
+     */
+    private IndexSegment freeze() {
+        Map<String, PostingList> postings = new HashMap<>(live.size() * 2);
+        for (Map.Entry<String, PositionBuffer> entry : live.entrySet()) {
+            PositionBuffer buffer = entry.getValue();
+            postings.put(entry.getKey(),
+                    PostingList.encode(buffer.positions, buffer.size));
+        }
+        IndexSegment segment = IndexSegment.build(postings, liveCount,
+                firstLivePosition, lastPosition);
+        List<IndexSegment> updated = new ArrayList<>(segments);
+        updated.add(segment);
+        segments = Collections.unmodifiableList(updated);
+        live.clear();
+        liveCount = 0;
+        if (!mergeScheduled && open) {
+            mergeScheduled = true;
+            merger.execute(this::mergeSegments);
+        }
+        return segment;
+    }
+
+    /**
+     * Save a frozen segment and put the mapped copy in its place. Called
+     * without the lock, so searches go on while the file is written.
+     */
+    private void persist(IndexSegment segment) {
+        IndexSegment saved = save(segment);
+        if (saved == segment) {
+            return;
+        }
+        synchronized (this) {
+            int index = segments.indexOf(segment);
+            if (index >= 0) {
+                List<IndexSegment> updated = new ArrayList<>(segments);
+                updated.set(index, saved);
+                segments = Collections.unmodifiableList(updated);
+                return;
+            }
+        }
+        // Merged meanwhile, the merged segment has its messages
+        saved.delete();
+    }
+
+    /**
+     * Save a segment, if the index has a directory.
+     *
+     * @return The saved segment, or the same segment if it stays in memory
+     */
+    private IndexSegment save(IndexSegment segment) {
+        if (directory == null) {
+            return segment;
+        }
+        try {
+            return segment.save(directory);
+        } catch (IOException e) {
+            // Still searchable, indexed again on the next start
+            System.err.println("Index: could not save a segment: "
+                    + e.getMessage());
+            return segment;
+        }
+    }
+
+    /**
+     * Runs on the merge thread: merge runs of MERGE_FACTOR neighbouring
+     * segments of the same size class until there are none left.
+     */
+    private void mergeSegments() {
+        try {
+            int[] run;
+            while ((run = findMergeRun(segments, mergeLevelLimit)) != null) {
+                List<IndexSegment> inputs = segments.subList(run[0], run[1]);
+                IndexSegment merged;
+                try {
+                    merged = IndexSegment.merge(inputs, directory);
+                } catch (IOException | RuntimeException
+                        | OutOfMemoryError e) {
+                    // Too large to merge: leave segments this large as they
+                    // are, searches only look at a few more of them
+                    mergeLevelLimit = sizeClass(inputs.get(0));
+                    System.err.println("Index: stopped merging segments of "
+                            + inputs.get(0).getMessageCount()
+                            + " messages: " + e);
+                    continue;
+                }
+                List<IndexSegment> replaced;
+                synchronized (this) {
+                    // Segments are only appended, or replaced by their saved
+                    // copies, meanwhile: the run is still at the same place
+                    List<IndexSegment> updated = new ArrayList<>(segments);
+                    List<IndexSegment> merging
+                            = updated.subList(run[0], run[1]);
+                    replaced = new ArrayList<>(merging);
+                    merging.clear();
+                    updated.add(run[0], merged);
+                    segments = Collections.unmodifiableList(updated);
+                }
+                replaced.addAll(inputs);
+                for (IndexSegment input : replaced) {
+                    input.delete();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mergeScheduled = false;
+                // A segment may have been frozen after the last check
+                if (open && findMergeRun(segments, mergeLevelLimit) != null) {
+                    mergeScheduled = true;
+                    merger.execute(this::mergeSegments);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param levelLimit Lowest size class that is not merged
+     * @return Start (inclusive) and end (exclusive) of the first run of
+     * segments to merge, null if there is none
+     */
+    private static int[] findMergeRun(List<IndexSegment> list,
+            int levelLimit) {
+        int start = 0;
+        for (int i = 1; i <= list.size(); ++i) {
+            if (i == list.size() || sizeClass(list.get(i))
+                    != sizeClass(list.get(start))) {
+                if (i - start >= MERGE_FACTOR
+                        && sizeClass(list.get(start)) < levelLimit) {
+                    return new int[]{start, start + MERGE_FACTOR};
+                }
+                start = i;
+            }
+        }
+        return null;
+    }
+
+    private static int sizeClass(IndexSegment segment) {
+        int level = 0;
+        long size = segment.getMessageCount() / FLUSH_MESSAGES;
+        while (size >= MERGE_FACTOR) {
+            size /= MERGE_FACTOR;
+            ++level;
+        }
+        return level;
+    }
+
+    /**
+     * Find the messages that have all the terms of the query. Words are
+     * matched without regard to case; "sender:name" matches the sender.
+     *
+     * @param query The query, for example "sender:alice deploy"
+     * @param limit Maximum number of results
+     * @return Journal positions of the matching messages, newest first
+     */
+    public long[] search(String query, int limit) {
+        List<String> terms = parseQuery(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        long[] results = new long[limit];
+        int found;
+        List<IndexSegment> frozen;
+        synchronized (this) {
+            frozen = segments;
+            long[][] lists = new long[terms.size()][];
+            int[] sizes = new int[terms.size()];
+            for (int i = 0; i < lists.length; ++i) {
+                PositionBuffer buffer = live.get(terms.get(i));
+                if (buffer == null) {
+                    lists = null;
+                    break;
+                }
+                lists[i] = buffer.positions;
+                sizes[i] = buffer.size;
+            }
+            found = lists != null
+                    ? collectNewest(lists, sizes, results, 0) : 0;
+        }
+        for (int s = frozen.size() - 1; s >= 0 && found < limit; --s) {
+            IndexSegment segment = frozen.get(s);
+            long[][] lists = new long[terms.size()][];
+            int[] sizes = new int[terms.size()];
+            boolean all = true;
+            for (int i = 0; i < lists.length && all; ++i) {
+                PostingList list = segment.get(terms.get(i));
+                if (list == null) {
+                    all = false;
+                } else {
+                    lists[i] = list.decode(null);
+                    sizes[i] = list.getCount();
+                }
+            }
+            if (all) {
+                found = collectNewest(lists, sizes, results, found);
+            }
+        }
+        return Arrays.copyOf(results, found);
+    }
+
+    /**
+     * Intersect sorted lists and add the matches to the results, newest
+     * first.
+     *
+     * @return The new number of results
+     */
+    private static int collectNewest(long[][] lists, int[] sizes,
+            long[] results, int found) {
+        // Start with the shortest list, it limits the work
+        int shortest = 0;
+        for (int i = 1; i < lists.length; ++i) {
+            if (sizes[i] < sizes[shortest]) {
+                shortest = i;
+            }
+        }
+        long[] matches = Arrays.copyOf(lists[shortest], sizes[shortest]);
+        int count = sizes[shortest];
+        for (int i = 0; i < lists.length && count > 0; ++i) {
+            if (i != shortest) {
+                count = intersect(matches, count, lists[i], sizes[i]);
+            }
+        }
+        for (int i = count - 1; i >= 0 && found < results.length; --i) {
+            results[found++] = matches[i];
+        }
+        return found;
+    }
+
+    /**
+     * Keep only the positions of a that are also in b.
+     *
+     * @return Number of positions left in a
+     */
+    private static int intersect(long[] a, int aSize, long[] b, int bSize) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < aSize && j < bSize; ++i) {
+            // Skip ahead in b by binary search, b is usually much longer
+            if (b[j] < a[i]) {
+                int k = Arrays.binarySearch(b, j, bSize, a[i]);
+                j = k >= 0 ? k : -k - 1;
+            }
+            if (j < bSize && b[j] == a[i]) {
+                a[kept++] = a[i];
+                ++j;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Split a query into index terms.
+     */
+    static List<String> parseQuery(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.regionMatches(true, 0, SENDER_PREFIX, 0,
+                    SENDER_PREFIX.length())) {
+                String sender = word.substring(SENDER_PREFIX.length());
+                if (!sender.isEmpty()) {
+                    terms.add(SENDER_PREFIX + sender.toLowerCase());
+                }
+                continue;
+            }
+            StringBuilder term = new StringBuilder();
+            for (int i = 0; i <= word.length(); ++i) {
+                char c = i < word.length() ? word.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    if (term.length() < MAX_TERM_LENGTH) {
+                        term.append(Character.toLowerCase(c));
+                    }
+                } else if (term.length() > 0) {
+                    terms.add(term.toString());
+                    term.setLength(0);
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Index the messages already in the journal, then keep indexing new ones
+     * as they are written, on a background thread. An index with saved
+     * segments starts after the last of them.
+     *
+     * @param journal The journal
+     */
+    public synchronized void follow(MessageJournal journal) {
+        if (indexer != null) {
+            throw new IllegalStateException("Already following a journal");
+        }
+        if (liveCount == 0 && !segments.isEmpty()) {
+            // Saved segments can cover records that were lost when the
+            // journal recovered from a crash: index those places again
+            List<IndexSegment> kept = new ArrayList<>(segments);
+            while (!kept.isEmpty() && kept.get(kept.size() - 1)
+                    .getLastPosition() >= journal.getEndPosition()) {
+                kept.remove(kept.size() - 1).delete();
+            }
+            segments = Collections.unmodifiableList(kept);
+            lastPosition = kept.isEmpty() ? -1
+                    : kept.get(kept.size() - 1).getLastPosition();
+        }
+        // Messages already indexed are skipped
+        JournalReader reader = journal.openReader();
+        reader.seek(Math.max(lastPosition, 0));
+        indexer = new Thread(() -> {
+            try {
+                while (open) {
+                    JournalEntry entry = reader.next();
+                    if (entry != null) {
+                        add(entry.getPosition(), entry.getMessage());
+                    } else {
+                        Thread.sleep(IDLE_POLL_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            } catch (IOException e) {
+                System.err.println("Indexing stopped: " + e.getMessage());
+            }
+        }, "chat-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * @return Number of indexed messages
+     */
+    public synchronized long getMessageCount() {
+        long count = liveCount;
+        for (IndexSegment segment : segments) {
+            count += segment.getMessageCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of frozen segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stop following the journal and merging.
+     */
+    @Override
+    public void close() {
+        open = false;
+        Thread t = indexer;
+        if (t != null) {
+            t.interrupt();
+        }
+        merger.shutdown();
+    }
+}
@@ -0,0 +1,465 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import no.ntnu.datakomm.data.TextMessage;
+
+/**
+ * Chat history on disk: an append-only log of received messages, split in
+ * segment files of a fixed size that are memory-mapped. Appending only puts
+ * the message in a queue, a writer thread copies it into the mapped segment,
+ * so the thread reading the socket never waits for the disk.
+ *
+ * Every message is one record:
+ *
+ * [int length][long timestamp][byte flags][short sender length][sender]
+ * [text][int length]
+ *
+ * where length counts the bytes between the two length fields. The length
+ * at the end lets a reader walk the journal backward as well as forward,
+ * and tells a complete record from one torn by a crash. A record never
+ * crosses a segment: a zero length marks the end of the data in a segment,
+ * and the last four bytes of a full segment hold the offset of that end.
+ *
+ * A record is identified by its position: the number of the segment times
+ * the segment size, plus the offset in the segment. Positions only grow.
+ *
+ * Only one journal at a time can use a directory: it holds an exclusive
+ * lock on LOCK_FILE in the directory until it is closed.
+ */
+public class MessageJournal implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    // Messages waiting for the writer thread, more are dropped
+    public static final int QUEUE_CAPACITY = 65536;
+
+    // Length, timestamp, flags and sender length
+    static final int HEADER_SIZE = 4 + 8 + 1 + 2;
+    static final int TRAILER_SIZE = 4;
+    // Offset of the data end, in the last bytes of a segment
+    static final int FOOTER_SIZE = 4;
+    static final byte FLAG_PRIVATE = 1;
+
+    public static final String LOCK_FILE = "journal.lock";
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+    // How often the writer looks at the fsync policy when idle
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class PendingRecord {
+
+        final TextMessage message;
+        final long timestampMillis;
+
+        PendingRecord(TextMessage message, long timestampMillis) {
+            this.message = message;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    private final Path directory;
+    // Held while the journal is open
+    private final FileChannel lockChannel;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final BlockingQueue<PendingRecord> queue
+            = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread writer;
+    private final long startPosition;
+
+    private volatile boolean open = true;
+    // Every record before this position is complete
+    private volatile long endPosition;
+
+    // Only used by the writer thread (and the constructor)
+    private MappedByteBuffer segment;
+    private long segmentBase;
+    private int writeOffset;
+    private boolean dirty = false;
+    private long lastForceNanos = System.nanoTime();
+
+    /**
+     * Open the journal in a directory with the default segment size, never
+     * forcing writes to disk.
+     *
+     * @param directory Where the segment files are, created if needed
+     * @throws IOException when the directory or a segment cannot be opened
+     */
+    public MessageJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, FsyncPolicy.never());
+    }
+
+    /**
+     * Open the journal in a directory. Existing segments are kept and new
+     * messages are appended after the last complete record.
+     *
+     * @param directory Where the segment files are, created if needed
+     * @param segmentSize Size of new segment files in bytes, ignored when
+     * the directory already has segments
+     * @param fsyncPolicy When to force written messages to the disk
+     * @throws IOException when the directory or a segment cannot be opened,
+     * or another journal uses the directory
+     */
+    public MessageJournal(Path directory, int segmentSize,
+            FsyncPolicy fsyncPolicy) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least "
+                    + MIN_SEGMENT_SIZE);
+        }
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+        lockChannel = lock(directory);
+        try {
+            List<Long> bases = listSegments(directory);
+            if (bases.isEmpty()) {
+                this.segmentSize = segmentSize;
+                startPosition = 0;
+                segmentBase = 0;
+                segment = map(0);
+                writeOffset = 0;
+            } else {
+                long existingSize = Files.size(segmentPath(bases.get(0)));
+                if (existingSize < MIN_SEGMENT_SIZE
+                        || existingSize > Integer.MAX_VALUE) {
+                    throw new IOException("Bad journal segment size "
+                            + existingSize);
+                }
+                this.segmentSize = (int) existingSize;
+                startPosition = bases.get(0);
+                segmentBase = bases.get(bases.size() - 1);
+                segment = map(segmentBase);
+                writeOffset = recover(segment);
+            }
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        endPosition = segmentBase + writeOffset;
+        writer = new Thread(this::runWriter, "chat-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Take the lock of the directory. Two journals writing to the same
+     * segments would overwrite each other's records.
+     *
+     * @return The channel of the lock file, closing it releases the lock
+     * @throws IOException when another journal, in this or another
+     * process, holds the lock
+     */
+    private static FileChannel lock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by a journal in this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Journal " + directory
+                    + " is used by another client");
+        }
+        return channel;
+    }
+
+    /**
+     * @return The base positions of the segments in the directory, sorted
+     */
+    private static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(PREFIX.length(),
+                            name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring journal file " + name);
+                }
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    Path segmentPath(long base) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, base,
+                SUFFIX));
+    }
+
+    /**
+     * Map a segment for writing, creating the file if needed.
+     */
+    private MappedByteBuffer map(long base) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Find the end of the complete records in the last segment. A record
+     * that was only partly written when the program stopped is erased,
+     * together with anything after it.
+     *
+     * @return Offset where the next record goes
+     */
+    private int recover(MappedByteBuffer buffer) {
+        int offset = 0;
+        int limit = segmentSize - FOOTER_SIZE - 4;
+        while (offset <= limit) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                return offset;
+            }
+            int end = offset + 4 + length;
+            if (length < HEADER_SIZE - 4 || end + TRAILER_SIZE > limit
+                    || buffer.getInt(end) != length) {
+                System.err.println("Journal: discarding torn record at "
+                        + (segmentBase + offset));
+                for (int i = offset; i < segmentSize; ++i) {
+                    buffer.put(i, (byte) 0);
+                }
+                return offset;
+            }
+            offset = end + TRAILER_SIZE;
+        }
+        return offset;
+    }
+
+    /**
+     * Queue a message for writing. Never blocks: when the writer has fallen
+     * too far behind, the message is dropped.
+     *
+     * @param message The message
+     * @param timestampMillis When it was received
+     * @return False if the message was dropped or the journal is closed
+     */
+    public boolean append(TextMessage message, long timestampMillis) {
+        if (!open) {
+            return false;
+        }
+        if (!queue.offer(new PendingRecord(message, timestampMillis))) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs on the writer thread until the journal is closed and the queue
+     * is empty.
+     */
+    private void runWriter() {
+        List<PendingRecord> batch = new ArrayList<>();
+        long pollMillis = fsyncPolicy.getIntervalNanos() > 0
+                ? Math.min(IDLE_POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(
+                        fsyncPolicy.getIntervalNanos()))
+                : IDLE_POLL_MILLIS;
+        try {
+            while (open || !queue.isEmpty()) {
+                PendingRecord first = queue.poll(pollMillis,
+                        TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    write(first);
+                    queue.drainTo(batch);
+                    for (PendingRecord record : batch) {
+                        write(record);
+                    }
+                    batch.clear();
+                }
+                syncIfDue();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Journal writer stopped: " + e.getMessage());
+            open = false;
+        }
+        if (dirty && !fsyncPolicy.isNever()) {
+            segment.force();
+        }
+    }
+
+    private void write(PendingRecord record) throws IOException {
+        TextMessage message = record.message;
+        byte[] sender = bytesOf(message.getSender());
+        byte[] text = bytesOf(message.getText());
+        int length = HEADER_SIZE - 4 + sender.length + text.length;
+        int recordSize = 4 + length + TRAILER_SIZE;
+        // Room for the end marker and the footer must remain
+        if (sender.length > 0xFFFF
+                || recordSize > segmentSize - FOOTER_SIZE - 4) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (writeOffset + recordSize > segmentSize - FOOTER_SIZE - 4) {
+            roll();
+        }
+        MappedByteBuffer buffer = segment;
+        int offset = writeOffset;
+        buffer.putLong(offset + 4, record.timestampMillis);
+        buffer.put(offset + 12, message.isPrivate() ? FLAG_PRIVATE : 0);
+        buffer.putShort(offset + 13, (short) sender.length);
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(sender);
+        buffer.put(text);
+        buffer.putInt(offset + 4 + length, length);
+        // The leading length last: the record counts only when complete
+        buffer.putInt(offset, length);
+        writeOffset = offset + recordSize;
+        dirty = true;
+        endPosition = segmentBase + writeOffset;
+    }
+
+    private static byte[] bytesOf(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * Close the current segment and continue in a new one.
+     */
+    private void roll() throws IOException {
+        segment.putInt(segmentSize - FOOTER_SIZE, writeOffset);
+        if (!fsyncPolicy.isNever()) {
+            segment.force();
+        }
+        segmentBase += segmentSize;
+        segment = map(segmentBase);
+        writeOffset = 0;
+        dirty = false;
+    }
+
+    private void syncIfDue() {
+        if (!dirty || fsyncPolicy.isNever()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastForceNanos >= fsyncPolicy.getIntervalNanos()) {
+            segment.force();
+            lastForceNanos = now;
+            dirty = false;
+        }
+    }
+
+    /**
+     * Create a reader positioned at the start of the journal. Each reader
+     * must be used by one thread at a time.
+     *
+     * @return The reader
+     */
+    public JournalReader openReader() {
+        return new JournalReader(this);
+    }
+
+    /**
+     * Read all complete records from a position to the current end, in
+     * order.
+     *
+     * @param fromPosition Position of a record, or the start position
+     * @param consumer Gets every entry
+     * @return The position after the last entry read
+     * @throws IOException when a segment cannot be read
+     */
+    public long replay(long fromPosition, Consumer<JournalEntry> consumer)
+            throws IOException {
+        JournalReader reader = openReader();
+        reader.seek(fromPosition);
+        JournalEntry entry;
+        while ((entry = reader.next()) != null) {
+            consumer.accept(entry);
+        }
+        return reader.getPosition();
+    }
+
+    /**
+     * Stop accepting messages, write the queued ones, stop the writer and
+     * release the directory.
+     */
+    @Override
+    public void close() {
+        open = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Journal: could not release the lock: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Position of the first record
+     */
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * @return Position after the last complete record
+     */
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * @return Number of messages waiting for the writer thread
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return Number of messages dropped because the queue was full or the
+     * message was too large
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public String toString() {
+        return "journal " + directory + " [" + startPosition + ", "
+                + endPosition + "), fsync " + fsyncPolicy;
+    }
+}
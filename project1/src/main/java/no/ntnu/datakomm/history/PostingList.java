@@ -0,0 +1,128 @@
+package no.ntnu.datakomm.history;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The positions of the messages that contain one term, sorted and
+ * compressed: each position is stored as the difference to the previous one,
+ * in a variable number of bytes (7 bits per byte, the high bit set on all
+ * bytes but the last). Chat messages are close together in the journal, so
+ * most differences take one or two bytes instead of eight.
+ */
+final class PostingList {
+
+    private final byte[] data;
+    private final int count;
+    private final long last;
+
+    private PostingList(byte[] data, int count, long last) {
+        this.data = data;
+        this.count = count;
+        this.last = last;
+    }
+
+    /**
+     * Compress positions.
+     *
+     * @param positions Sorted, without duplicates
+     * @param count Number of positions to take from the array
+     * @return The list
+     */
+    static PostingList encode(long[] positions, int count) {
+        byte[] out = new byte[Math.max(16, count * 2)];
+        int size = 0;
+        long previous = 0;
+        for (int i = 0; i < count; ++i) {
+            long delta = positions[i] - previous;
+            previous = positions[i];
+            if (size + 10 > out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                out[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out[size++] = (byte) delta;
+        }
+        return new PostingList(Arrays.copyOf(out, size), count,
+                count > 0 ? positions[count - 1] : -1);
+    }
+
+    /**
+     * Uncompress the positions.
+     *
+     * @param into Array to fill, replaced by a larger one when too small
+     * @return The array holding the positions, the first getCount() are used
+     */
+    long[] decode(long[] into) {
+        long[] out = into != null && into.length >= count ? into
+                : new long[count];
+        long value = 0;
+        int pos = 0;
+        for (int i = 0; i < count; ++i) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            out[i] = value;
+        }
+        return out;
+    }
+
+    /**
+     * @return Number of positions in the list
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The largest position, -1 if the list is empty
+     */
+    long getLast() {
+        return last;
+    }
+
+    /**
+     * @return Size of the compressed data in bytes
+     */
+    int getSizeInBytes() {
+        return data.length;
+    }
+
+    /**
+     * @return Number of bytes writeTo() writes
+     */
+    int getStoredSize() {
+        return 4 + 8 + 4 + data.length;
+    }
+
+    /**
+     * Write the list: count, largest position, length of the data, data.
+     *
+     * @param out Where to write, from its position
+     */
+    void writeTo(ByteBuffer out) {
+        out.putInt(count).putLong(last).putInt(data.length).put(data);
+    }
+
+    /**
+     * Read a list written by writeTo().
+     *
+     * @param in Where to read, from its position
+     * @return The list
+     */
+    static PostingList readFrom(ByteBuffer in) {
+        int count = in.getInt();
+        long last = in.getLong();
+        byte[] data = new byte[in.getInt()];
+        in.get(data);
+        return new PostingList(data, count, last);
+    }
+}
@@ -0,0 +1,118 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import no.ntnu.datakomm.data.MessageAck;
+import no.ntnu.datakomm.facade.MessageRejectedException;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Matches the server's msgok/msgerr replies to the messages we sent. The
+ * server answers every chat message, in order, so the oldest message still
+ * waiting is the one a reply belongs to.
+ */
+final class AckCorrelator {
+
+    /**
+     * A message on the wire, waiting for the reply.
+     */
+    static final class PendingAck {
+
+        // Null for messages sent through the non-async methods
+        final CompletableFuture<MessageAck> future;
+        final long sentNanos;
+
+        PendingAck(CompletableFuture<MessageAck> future, long sentNanos) {
+            this.future = future;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private final Queue<PendingAck> pending = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+
+    /**
+     * Register a message that is about to be written to the socket. Must be
+     * called in the order the messages are written.
+     *
+     * @param future Completed when the reply arrives, may be null
+     * @param sentNanos System.nanoTime() when the message was sent
+     * @return The entry, for cancel() if the message is not written after all
+     */
+    PendingAck expect(CompletableFuture<MessageAck> future, long sentNanos) {
+        PendingAck ack = new PendingAck(future, sentNanos);
+        pending.add(ack);
+        return ack;
+    }
+
+    /**
+     * Take back a message that was registered but not written, so that the
+     * replies to the messages after it are not matched to it.
+     *
+     * @param ack What expect() returned
+     */
+    void cancel(PendingAck ack) {
+        pending.remove(ack);
+    }
+
+    /**
+     * The server delivered the oldest pending message.
+     *
+     * @param recipientCount Number of recipients reported by the server
+     */
+    void onAck(int recipientCount) {
+        PendingAck ack = pending.poll();
+        if (ack != null) {
+            long rtt = System.nanoTime() - ack.sentNanos;
+            roundTrip.record(rtt);
+            if (ack.future != null) {
+                ack.future.complete(new MessageAck(recipientCount, rtt));
+            }
+        }
+    }
+
+    /**
+     * The server refused the oldest pending message.
+     *
+     * @param errMsg Error message from the server
+     */
+    void onError(String errMsg) {
+        PendingAck ack = pending.poll();
+        if (ack != null) {
+            roundTrip.record(System.nanoTime() - ack.sentNanos);
+            if (ack.future != null) {
+                ack.future.completeExceptionally(
+                        new MessageRejectedException(errMsg));
+            }
+        }
+    }
+
+    /**
+     * Fail all pending messages, the replies will never come.
+     *
+     * @param cause The reason
+     */
+    void failAll(Throwable cause) {
+        PendingAck ack;
+        while ((ack = pending.poll()) != null) {
+            if (ack.future != null) {
+                ack.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * @return Number of messages waiting for a reply
+     */
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return Time from sending a message until the server's reply
+     */
+    LatencyHistogram getRoundTrip() {
+        return roundTrip;
+    }
+}
@@ -0,0 +1,110 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a blocking Socket. A dedicated thread is parked in read()
+ * for as long as the connection is open.
+ */
+class BlockingTransport implements Transport {
+
+    private final Socket connection;
+    private final OutputStream toServer;
+    private final InputStream fromServer;
+    private final TransportListener listener;
+    private final LineParser parser = new LineParser();
+
+    // Set when close() is called, so that the reading thread knows the
+    // error it gets is expected
+    private volatile boolean closed = false;
+
+    /**
+     * Open a blocking TCP connection.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @param timeoutMillis How long to wait for the server to accept the
+     * connection
+     * @param listener Listener for incoming lines
+     * @throws IOException when the connection could not be established
+     */
+    BlockingTransport(String host, int port, int timeoutMillis,
+            TransportListener listener) throws IOException {
+        this.listener = listener;
+        connection = new Socket();
+        try {
+            connection.connect(new InetSocketAddress(host, port),
+                    timeoutMillis);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        toServer = connection.getOutputStream();
+        fromServer = connection.getInputStream();
+    }
+
+    @Override
+    public void startReading() {
+        Thread t = new Thread(this::readLoop);
+        t.start();
+    }
+
+    /**
+     * Read incoming bytes until the socket is closed, hand complete lines to
+     * the listener. The lines are parsed in place in the read buffer.
+     */
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(SelectorLoop.READ_BUFFER_SIZE);
+        try {
+            int count;
+            // The next line will block until a response is received.
+            while ((count = fromServer.read(buffer.array(), buffer.position(),
+                    buffer.remaining())) >= 0) {
+                buffer.position(buffer.position() + count);
+                listener.onBytesReceived(count);
+                buffer.flip();
+                parser.parse(buffer, listener);
+                listener.onReadComplete();
+                // Move the incomplete line, if any, to the start
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("Line from server is too long");
+                }
+            }
+            if (!closed) {
+                listener.onTransportClosed(null);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                listener.onTransportClosed(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean write(ByteBuffer data) {
+        if (closed) {
+            return false;
+        }
+        try {
+            toServer.write(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining());
+            data.position(data.limit());
+            return true;
+        } catch (IOException e) {
+            // The reading thread will notice the broken socket as well
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        toServer.close();
+        fromServer.close();
+        connection.close();
+    }
+}
@@ -0,0 +1,99 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and one consumer at a
+ * time. Every slot has a sequence number that tells whether it is free for
+ * the producer of a given round or holds an element for the consumer, so
+ * producers only compete on one compare-and-set of the tail counter.
+ *
+ * Consumers must not call poll() in parallel; callers serialize them.
+ *
+ * @param <E> Element type
+ */
+final class BoundedMpscQueue<E> {
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of elements, rounded up to a power of
+     * two
+     */
+    BoundedMpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, unless the queue is full.
+     *
+     * @param e The element, not null
+     * @return False if the queue was full
+     */
+    boolean offer(E e) {
+        long t;
+        int index;
+        while (true) {
+            t = tail.get();
+            index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // The consumer has not freed this slot yet: full
+                return false;
+            }
+            // Otherwise another producer took the slot, try the next one
+        }
+        elements.lazySet(index, e);
+        // Publish the element to the consumer
+        sequences.set(index, t + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest element.
+     *
+     * @return The element, null if the queue is empty
+     */
+    E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        if (sequences.get(index) != h + 1) {
+            return null;
+        }
+        E e = elements.get(index);
+        elements.lazySet(index, null);
+        // Free the slot for the producer of the next round
+        sequences.set(index, h + mask + 1);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * @return Number of elements in the queue. Only an estimate while
+     * producers are adding.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
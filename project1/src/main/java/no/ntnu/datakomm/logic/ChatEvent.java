@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.List;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+
+/**
+ * One slot of the EventRing: a listener callback and its arguments. The
+ * slots are allocated once and overwritten, the fields are only meaningful
+ * for the event type in the slot.
+ */
+final class ChatEvent {
+
+    enum Type {
+        LOGIN_RESULT, DISCONNECT, MESSAGE, MESSAGES, MESSAGE_ERROR, USER_LIST,
+        USERS_JOINED, USERS_LEFT, SUPPORTED_COMMANDS, COMMAND_ERROR
+    }
+
+    Type type;
+    boolean success;
+    String text;
+    TextMessage message;
+    List<TextMessage> messages;
+    String[] items;
+    // System.nanoTime() when the event was published
+    long publishedNanos;
+
+    /**
+     * Call the listener method that corresponds to this event.
+     *
+     * @param listener The listener
+     */
+    void deliverTo(ChatListener listener) {
+        switch (type) {
+            case LOGIN_RESULT:
+                listener.onLoginResult(success, text);
+                break;
+            case DISCONNECT:
+                listener.onDisconnect();
+                break;
+            case MESSAGE:
+                listener.onMessageReceived(message);
+                break;
+            case MESSAGES:
+                listener.onMessagesReceived(messages);
+                break;
+            case MESSAGE_ERROR:
+                listener.onMessageError(text);
+                break;
+            case USER_LIST:
+                listener.onUserList(items);
+                break;
+            case USERS_JOINED:
+                listener.onUsersJoined(items);
+                break;
+            case USERS_LEFT:
+                listener.onUsersLeft(items);
+                break;
+            case SUPPORTED_COMMANDS:
+                listener.onSupportedCommands(items);
+                break;
+            case COMMAND_ERROR:
+                listener.onCommandError(text);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Hands listener callbacks from the socket reader to listener threads
+ * through EventRings. Registered as an ordinary listener, the bus only
+ * copies the arguments into the next slot of every subscribed listener's
+ * ring, so the reader never runs listener code and never waits.
+ *
+ * Every subscribed listener has its own ring, thread and wait strategy. A
+ * slow listener only delays itself: when it falls a whole ring behind, the
+ * events it has no room for are dropped and counted, and the other
+ * listeners and the reader carry on.
+ */
+final class ChatEventBus implements ChatListener {
+
+    static final int RING_SIZE = 4096;
+
+    private static final Subscription[] NONE = new Subscription[0];
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Map<ChatListener, Subscription> subscriptions
+            = new ConcurrentHashMap<>();
+    // The subscriptions as an array, for the producer to loop over
+    private final AtomicReference<Subscription[]> lanes
+            = new AtomicReference<>(NONE);
+
+    /**
+     * A listener with its own ring and consumer thread.
+     */
+    private static final class Subscription implements Runnable {
+
+        final ChatListener listener;
+        final WaitStrategy waitStrategy;
+        final EventRing ring = new EventRing(RING_SIZE);
+        final AtomicLong sequence;
+        final AtomicLong droppedCount = new AtomicLong();
+        final LatencyHistogram handoffLatency = new LatencyHistogram();
+        final Thread thread;
+        volatile boolean running = true;
+
+        // Only used by the producer
+        private long claimed;
+
+        Subscription(ChatListener listener, WaitStrategy waitStrategy) {
+            this.listener = listener;
+            this.waitStrategy = waitStrategy;
+            sequence = ring.addConsumer();
+            thread = new Thread(this,
+                    "chat-listener-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Claim the next slot and set its type.
+         *
+         * @return The event to fill in, null if the ring is full and the
+         * event is dropped for this listener
+         */
+        ChatEvent claim(ChatEvent.Type type) {
+            claimed = ring.tryNext();
+            if (claimed < 0) {
+                if (droppedCount.getAndIncrement() == 0) {
+                    System.err.println("Listener " + listener
+                            + " is too slow, dropping events");
+                }
+                return null;
+            }
+            ChatEvent event = ring.get(claimed);
+            event.type = type;
+            return event;
+        }
+
+        /**
+         * Stamp the claimed event and make it visible to the thread.
+         */
+        void publish(ChatEvent event) {
+            event.publishedNanos = System.nanoTime();
+            ring.publish(claimed);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            int attempt = 0;
+            while (running) {
+                long available = ring.getCursor();
+                if (available < next) {
+                    waitStrategy.idle(++attempt);
+                    continue;
+                }
+                attempt = 0;
+                // Deliver everything published so far, then release the
+                // slots to the producer in one go
+                for (; next <= available; ++next) {
+                    ChatEvent event = ring.get(next);
+                    handoffLatency.record(
+                            System.nanoTime() - event.publishedNanos);
+                    try {
+                        event.deliverTo(listener);
+                    } catch (RuntimeException e) {
+                        System.err.println("Listener failed: " + e);
+                    }
+                }
+                sequence.lazySet(available);
+            }
+        }
+    }
+
+    /**
+     * Start delivering events to a listener on its own thread. Does not
+     * wait for the thread that publishes events.
+     *
+     * @param listener The listener
+     * @param waitStrategy How the thread waits for events
+     * @return False if the listener was subscribed already
+     */
+    boolean subscribe(ChatListener listener, WaitStrategy waitStrategy) {
+        Subscription subscription = new Subscription(listener, waitStrategy);
+        if (subscriptions.putIfAbsent(listener, subscription) != null) {
+            return false;
+        }
+        addLane(subscription);
+        if (subscriptions.get(listener) != subscription) {
+            // Unsubscribed while the lane was added
+            removeLane(subscription);
+            return true;
+        }
+        subscription.thread.start();
+        return true;
+    }
+
+    /**
+     * Stop delivering events to a listener. Does not wait for the thread
+     * that publishes events.
+     *
+     * @param listener The listener
+     * @return False if the listener was not subscribed
+     */
+    boolean unsubscribe(ChatListener listener) {
+        Subscription subscription = subscriptions.remove(listener);
+        if (subscription == null) {
+            return false;
+        }
+        removeLane(subscription);
+        subscription.running = false;
+        LockSupport.unpark(subscription.thread);
+        return true;
+    }
+
+    private void addLane(Subscription subscription) {
+        Subscription[] current;
+        Subscription[] updated;
+        do {
+            current = lanes.get();
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+        } while (!lanes.compareAndSet(current, updated));
+    }
+
+    private void removeLane(Subscription subscription) {
+        Subscription[] current;
+        Subscription[] updated;
+        do {
+            current = lanes.get();
+            updated = new Subscription[current.length];
+            int n = 0;
+            for (Subscription s : current) {
+                if (s != subscription) {
+                    updated[n++] = s;
+                }
+            }
+            updated = n > 0 ? Arrays.copyOf(updated, n) : NONE;
+        } while (!lanes.compareAndSet(current, updated));
+    }
+
+    boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @param listener A subscribed listener
+     * @return Time from publishing an event until the listener's thread
+     * picked it up, null if the listener is not subscribed
+     */
+    LatencyHistogram getHandoffLatency(ChatListener listener) {
+        Subscription subscription = subscriptions.get(listener);
+        return subscription != null ? subscription.handoffLatency : null;
+    }
+
+    /**
+     * @param listener A subscribed listener
+     * @return Number of events the listener missed because it was a whole
+     * ring behind, -1 if the listener is not subscribed
+     */
+    long getDroppedCount(ChatListener listener) {
+        Subscription subscription = subscriptions.get(listener);
+        return subscription != null ? subscription.droppedCount.get() : -1;
+    }
+
+    // Every ring has a single producer: the methods below are synchronized
+    // in case callbacks ever come from more than one thread. They never
+    // wait for a listener, so holding the monitor is short.
+
+    @Override
+    public synchronized void onLoginResult(boolean success, String errMsg) {
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(ChatEvent.Type.LOGIN_RESULT);
+            if (event != null) {
+                event.success = success;
+                event.text = errMsg;
+                lane.publish(event);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onDisconnect() {
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(ChatEvent.Type.DISCONNECT);
+            if (event != null) {
+                lane.publish(event);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onMessageReceived(TextMessage message) {
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(ChatEvent.Type.MESSAGE);
+            if (event != null) {
+                event.message = message;
+                lane.publish(event);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onMessagesReceived(List<TextMessage> messages) {
+        // One slot for the whole batch, the listener gets it in one call too
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(ChatEvent.Type.MESSAGES);
+            if (event != null) {
+                event.messages = messages;
+                lane.publish(event);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onMessageError(String errMsg) {
+        publishText(ChatEvent.Type.MESSAGE_ERROR, errMsg);
+    }
+
+    @Override
+    public synchronized void onUserList(String[] usernames) {
+        publishItems(ChatEvent.Type.USER_LIST, usernames);
+    }
+
+    @Override
+    public synchronized void onUsersJoined(String[] usernames) {
+        publishItems(ChatEvent.Type.USERS_JOINED, usernames);
+    }
+
+    @Override
+    public synchronized void onUsersLeft(String[] usernames) {
+        publishItems(ChatEvent.Type.USERS_LEFT, usernames);
+    }
+
+    @Override
+    public synchronized void onSupportedCommands(String[] commands) {
+        publishItems(ChatEvent.Type.SUPPORTED_COMMANDS, commands);
+    }
+
+    @Override
+    public synchronized void onCommandError(String errMsg) {
+        publishText(ChatEvent.Type.COMMAND_ERROR, errMsg);
+    }
+
+    private void publishText(ChatEvent.Type type, String text) {
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(type);
+            if (event != null) {
+                event.text = text;
+                lane.publish(event);
+            }
+        }
+    }
+
+    private void publishItems(ChatEvent.Type type, String[] items) {
+        for (Subscription lane : lanes.get()) {
+            ChatEvent event = lane.claim(type);
+            if (event != null) {
+                event.items = items;
+                lane.publish(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import no.ntnu.datakomm.facade.ChatListener;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+import no.ntnu.datakomm.metrics.MetricsRegistry;
+
+/**
+ * The counters and histograms a TCPClient updates while it runs, kept as
+ * fields so the reading and writing threads do not look them up by name.
+ */
+final class ClientMetrics {
+
+    private final MetricsRegistry registry;
+
+    final LongAdder bytesReceived;
+    final LongAdder linesReceived;
+    final LongAdder bytesSent;
+    final LongAdder linesSent;
+    // Parsing and dispatching the lines of one read, without the delivery
+    // of the message batch
+    final LatencyHistogram readTime;
+
+    ClientMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        bytesReceived = registry.counter("chat_received_bytes_total");
+        linesReceived = registry.counter("chat_received_lines_total");
+        bytesSent = registry.counter("chat_sent_bytes_total");
+        linesSent = registry.counter("chat_sent_lines_total");
+        readTime = registry.histogram("chat_read_parse_seconds");
+    }
+
+    /**
+     * @return The counter of a command received from the server
+     */
+    LongAdder commandCounter(String command) {
+        return registry.counter("chat_commands_received_total{command=\""
+                + command + "\"}");
+    }
+
+    /**
+     * @return The histogram of the callback time of a listener. Listeners of
+     * the same class share it.
+     */
+    LatencyHistogram listenerTime(ChatListener listener) {
+        return registry.histogram("chat_listener_seconds{listener=\""
+                + TimedListener.nameOf(listener) + "\"}");
+    }
+
+    /**
+     * Wrap the transport of a new connection, to count what is sent.
+     */
+    Transport tap(Transport transport) {
+        return new Transport() {
+            @Override
+            public void startReading() {
+                transport.startReading();
+            }
+
+            @Override
+            public boolean write(ByteBuffer data) {
+                bytesSent.add(data.remaining());
+                linesSent.add(countLines(data));
+                return transport.write(data);
+            }
+
+            @Override
+            public boolean isWritable() {
+                return transport.isWritable();
+            }
+
+            @Override
+            public void whenWritable(Runnable action) {
+                transport.whenWritable(action);
+            }
+
+            @Override
+            public void close() throws IOException {
+                transport.close();
+            }
+        };
+    }
+
+    private static int countLines(ByteBuffer data) {
+        int lines = 0;
+        for (int i = data.position(); i < data.limit(); ++i) {
+            if (data.get(i) == '\n') {
+                ++lines;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,181 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable table that finds the handler for a received command with a
+ * perfect hash over the command bytes: every known command has its own slot,
+ * so a lookup is one hash, one array read and one byte comparison, no matter
+ * how many commands there are. Unknown commands end up in an empty slot or
+ * fail the comparison, and go to the fallback handler.
+ *
+ * The hash looks only at the length, first and last byte of the command.
+ * If two commands share those, the hash falls back to all the bytes.
+ */
+final class CommandDispatcher {
+
+    // How many multipliers to try before growing the table
+    private static final int MULTIPLIER_ATTEMPTS = 1000;
+    // Give up when the table would need more slots than this
+    private static final int MAX_BITS = 16;
+
+    private final byte[][] commands;
+    private final CommandHandler[] handlers;
+    private final CommandHandler unknownHandler;
+    private final boolean fullHash;
+    private final int multiplier;
+    private final int shift;
+
+    /**
+     * Build the table.
+     *
+     * @param handlerMap Handler for each command
+     * @param unknownHandler Handler for commands not in the map
+     */
+    CommandDispatcher(Map<String, CommandHandler> handlerMap,
+            CommandHandler unknownHandler) {
+        this.unknownHandler = unknownHandler;
+        int count = handlerMap.size();
+        byte[][] keys = new byte[count][];
+        CommandHandler[] values = new CommandHandler[count];
+        int i = 0;
+        for (Map.Entry<String, CommandHandler> entry : handlerMap.entrySet()) {
+            keys[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            values[i] = entry.getValue();
+            ++i;
+        }
+        fullHash = !cheapKeysAreUnique(keys);
+
+        // Find the smallest power-of-two table and a multiplier that put
+        // every command in a slot of its own
+        int bits = 1;
+        while ((1 << bits) < 2 * count) {
+            ++bits;
+        }
+        int[] hashes = new int[count];
+        for (i = 0; i < count; ++i) {
+            hashes[i] = fullHash ? fullKey(keys[i])
+                    : cheapKey(keys[i].length, keys[i][0],
+                            keys[i][keys[i].length - 1]);
+        }
+        int m = findMultiplier(hashes, bits);
+        while (m == 0) {
+            if (++bits > MAX_BITS) {
+                throw new IllegalArgumentException(
+                        "No perfect hash found for the commands");
+            }
+            m = findMultiplier(hashes, bits);
+        }
+        multiplier = m;
+        shift = 32 - bits;
+
+        commands = new byte[1 << bits][];
+        handlers = new CommandHandler[1 << bits];
+        for (i = 0; i < count; ++i) {
+            int slot = (hashes[i] * multiplier) >>> shift;
+            commands[slot] = keys[i];
+            handlers[slot] = values[i];
+        }
+    }
+
+    /**
+     * Find an odd multiplier for which no two hashes share a slot.
+     *
+     * @return The multiplier, 0 if none was found for this table size
+     */
+    private static int findMultiplier(int[] hashes, int bits) {
+        int shift = 32 - bits;
+        boolean[] used = new boolean[1 << bits];
+        int candidate = 0x9E3779B1; // Golden ratio, a good start
+        for (int attempt = 0; attempt < MULTIPLIER_ATTEMPTS; ++attempt) {
+            Arrays.fill(used, false);
+            boolean collision = false;
+            for (int h : hashes) {
+                int slot = (h * candidate) >>> shift;
+                if (used[slot]) {
+                    collision = true;
+                    break;
+                }
+                used[slot] = true;
+            }
+            if (!collision) {
+                return candidate;
+            }
+            candidate += 0x6A09E668; // Keeps the multiplier odd
+        }
+        return 0;
+    }
+
+    /**
+     * @return True when no two commands share length, first and last byte
+     */
+    private static boolean cheapKeysAreUnique(byte[][] keys) {
+        Set<Integer> seen = new HashSet<>();
+        for (byte[] key : keys) {
+            if (key.length == 0) {
+                throw new IllegalArgumentException("Empty command");
+            }
+            if (!seen.add(cheapKey(key.length, key[0], key[key.length - 1]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int cheapKey(int length, byte first, byte last) {
+        return (length << 16) | ((first & 0xFF) << 8) | (last & 0xFF);
+    }
+
+    /**
+     * FNV-1a over all the bytes of the command.
+     */
+    private static int fullKey(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < bytes.length; ++i) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Same as fullKey(), over the command token of a received line.
+     */
+    private static int fullKey(CommandLine line) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < line.commandLength(); ++i) {
+            h = (h ^ (line.commandByte(i) & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * @return True when the hash covers all the bytes of the command,
+     * because two commands share length, first and last byte
+     */
+    boolean usesFullHash() {
+        return fullHash;
+    }
+
+    /**
+     * Call the handler registered for the command of the given line.
+     *
+     * @param line A received line with a non-empty command
+     */
+    void dispatch(CommandLine line) {
+        int length = line.commandLength();
+        int h = fullHash ? fullKey(line)
+                : cheapKey(length, line.commandByte(0),
+                        line.commandByte(length - 1));
+        int slot = (h * multiplier) >>> shift;
+        byte[] command = commands[slot];
+        if (command != null && line.commandEquals(command)) {
+            handlers[slot].handle(line);
+        } else {
+            unknownHandler.handle(line);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package no.ntnu.datakomm.logic;
+
+/**
+ * Handles one type of command received from the server.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+    /**
+     * Handle a received command. Called on the thread reading the socket.
+     *
+     * @param line The received line. Only valid during this call.
+     */
+    void handle(CommandLine line);
+}
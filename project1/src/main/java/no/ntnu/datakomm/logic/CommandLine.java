@@ -0,0 +1,189 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One line received from the server, seen in place in the read buffer: the
+ * command token and the parameters are offsets into the buffer, nothing is
+ * copied. Strings are only created when someone asks for the text.
+ *
+ * The same object is reused for every line, so it is valid only during the
+ * call that received it. Copy out what you need to keep.
+ */
+public final class CommandLine {
+
+    private byte[] bytes;
+    private int start;
+    private int commandEnd;
+    private int paramsStart;
+    private int end;
+
+    /**
+     * Point this object to a new line.
+     *
+     * @param bytes Buffer holding the line
+     * @param start Index of the first byte of the line
+     * @param end Index after the last byte, line terminator excluded
+     */
+    void set(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        int i = start;
+        while (i < end && bytes[i] != ' ') {
+            ++i;
+        }
+        commandEnd = i;
+        paramsStart = i < end ? i + 1 : end;
+    }
+
+    /**
+     * @return Number of bytes in the command token
+     */
+    public int commandLength() {
+        return commandEnd - start;
+    }
+
+    /**
+     * @param index Index within the command token
+     * @return The byte at the given index of the command token
+     */
+    public byte commandByte(int index) {
+        return bytes[start + index];
+    }
+
+    /**
+     * Compare the command token with the given bytes without creating a
+     * String.
+     *
+     * @param command Command in ASCII
+     * @return True when the command token is exactly the given command
+     */
+    public boolean commandEquals(byte[] command) {
+        if (command.length != commandEnd - start) {
+            return false;
+        }
+        for (int i = 0; i < command.length; ++i) {
+            if (bytes[start + i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The command token as a new String
+     */
+    public String command() {
+        return new String(bytes, start, commandEnd - start,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Number of bytes in the parameters, 0 if there are none
+     */
+    public int paramsLength() {
+        return end - paramsStart;
+    }
+
+    /**
+     * @return The parameters (everything after the first space) as a new
+     * String, empty if there are none
+     */
+    public String params() {
+        return paramsFrom(0);
+    }
+
+    /**
+     * @param index Index within the parameters
+     * @return The byte at the given index of the parameters
+     */
+    public byte paramsByte(int index) {
+        return bytes[paramsStart + index];
+    }
+
+    /**
+     * Read the parameters as a decimal number, without creating a String.
+     *
+     * @param defaultValue Returned when the parameters are not a number
+     * @return The number
+     */
+    public int paramsAsInt(int defaultValue) {
+        if (paramsStart == end) {
+            return defaultValue;
+        }
+        int value = 0;
+        for (int i = paramsStart; i < end; ++i) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9
+                    || value > (Integer.MAX_VALUE - digit) / 10) {
+                return defaultValue;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Find the next space in the parameters.
+     *
+     * @param from Offset within the parameters where the search starts
+     * @return Offset within the parameters of the next space, -1 if none
+     */
+    public int indexOfSpace(int from) {
+        for (int i = paramsStart + from; i < end; ++i) {
+            if (bytes[i] == ' ') {
+                return i - paramsStart;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param from Offset within the parameters
+     * @return The parameters from the given offset to the end of the line as
+     * a new String
+     */
+    public String paramsFrom(int from) {
+        return paramsRange(from, end - paramsStart);
+    }
+
+    /**
+     * @param from Offset within the parameters, inclusive
+     * @param to Offset within the parameters, exclusive
+     * @return Part of the parameters as a new String
+     */
+    public String paramsRange(int from, int to) {
+        return new String(bytes, paramsStart + from, to - from,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The buffer holding the line, see lineStart() and lineEnd()
+     */
+    byte[] buffer() {
+        return bytes;
+    }
+
+    /**
+     * @return Index of the first byte of the line in buffer()
+     */
+    int lineStart() {
+        return start;
+    }
+
+    /**
+     * @return Index after the last byte of the line in buffer()
+     */
+    int lineEnd() {
+        return end;
+    }
+
+    /**
+     * @return The whole line as a new String
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
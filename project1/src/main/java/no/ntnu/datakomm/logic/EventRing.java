@@ -0,0 +1,130 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pre-allocated ring of events with one producer and any number of
+ * consumers, in the style of the LMAX Disruptor. The producer claims the next
+ * slot, fills it in place and publishes it by moving the cursor. Every
+ * consumer follows the cursor with its own sequence. The producer never
+ * waits: when the slowest consumer is a whole ring behind, the ring is full
+ * and no slot can be claimed until that consumer moves on.
+ */
+final class EventRing {
+
+    private final ChatEvent[] slots;
+    private final int mask;
+
+    // Sequence of the last published event
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // Sequences of the consumers, the producer may not overtake them
+    private final AtomicReference<AtomicLong[]> gatingSequences
+            = new AtomicReference<>(new AtomicLong[0]);
+
+    // Only used by the producer thread
+    private long claimed = -1;
+    private long cachedMinimum = -1;
+
+    /**
+     * @param size Number of slots, rounded up to a power of two
+     */
+    EventRing(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        slots = new ChatEvent[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new ChatEvent();
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Claim the next slot for writing, unless the ring is full. Only the
+     * producer thread may call this.
+     *
+     * @return Sequence of the claimed slot, -1 if the ring is full
+     */
+    long tryNext() {
+        long sequence = claimed + 1;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedMinimum) {
+            cachedMinimum = minimumGatingSequence(claimed);
+            if (wrapPoint > cachedMinimum) {
+                return -1;
+            }
+        }
+        claimed = sequence;
+        return sequence;
+    }
+
+    /**
+     * Make the event in the claimed slot visible to the consumers.
+     *
+     * @param sequence Sequence returned by next()
+     */
+    void publish(long sequence) {
+        cursor.lazySet(sequence);
+    }
+
+    /**
+     * @param sequence Sequence of an event
+     * @return The slot holding the event
+     */
+    ChatEvent get(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * @return Sequence of the last published event
+     */
+    long getCursor() {
+        return cursor.get();
+    }
+
+    private long minimumGatingSequence(long defaultValue) {
+        long minimum = defaultValue;
+        for (AtomicLong gating : gatingSequences.get()) {
+            minimum = Math.min(minimum, gating.get());
+        }
+        return minimum;
+    }
+
+    /**
+     * Add a consumer that starts after the last published event.
+     *
+     * @return The consumer's sequence, which it must advance as it reads
+     */
+    AtomicLong addConsumer() {
+        AtomicLong sequence = new AtomicLong(cursor.get());
+        AtomicLong[] current;
+        AtomicLong[] updated;
+        do {
+            current = gatingSequences.get();
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = sequence;
+        } while (!gatingSequences.compareAndSet(current, updated));
+        return sequence;
+    }
+
+    /**
+     * Remove a consumer, the producer no longer waits for it.
+     *
+     * @param sequence The sequence returned by addConsumer()
+     */
+    void removeConsumer(AtomicLong sequence) {
+        AtomicLong[] current;
+        AtomicLong[] updated;
+        do {
+            current = gatingSequences.get();
+            updated = new AtomicLong[current.length];
+            int n = 0;
+            for (AtomicLong s : current) {
+                if (s != sequence) {
+                    updated[n++] = s;
+                }
+            }
+            updated = Arrays.copyOf(updated, n);
+        } while (!gatingSequences.compareAndSet(current, updated));
+    }
+}
@@ -0,0 +1,100 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the commands buffered for the server are written to the
+ * socket. Writing several commands at once saves system calls and TCP
+ * segments, at the cost of a small, bounded delay.
+ */
+public final class FlushPolicy {
+
+    // Default upper bound on the delay for the size-based policy
+    private static final long DEFAULT_MAX_DELAY_MICROS = 1000;
+
+    private static final FlushPolicy IMMEDIATE = new FlushPolicy(1, 0);
+
+    private final int flushBytes;
+    private final long maxDelayNanos;
+
+    /**
+     * @param flushBytes Write as soon as this many bytes are buffered
+     * @param maxDelayNanos Write at the latest this long after the first
+     * buffered command
+     */
+    private FlushPolicy(int flushBytes, long maxDelayNanos) {
+        this.flushBytes = flushBytes;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Write every command as soon as it is sent. This is the default.
+     *
+     * @return The policy
+     */
+    public static FlushPolicy immediate() {
+        return IMMEDIATE;
+    }
+
+    /**
+     * Collect commands for a while, then write all of them at once.
+     *
+     * @param micros How long the first buffered command may wait
+     * @return The policy
+     */
+    public static FlushPolicy afterMicros(long micros) {
+        if (micros <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+        return new FlushPolicy(Integer.MAX_VALUE,
+                TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    /**
+     * Write when the given number of bytes has been collected. Commands are
+     * never held back longer than one millisecond.
+     *
+     * @param bytes Number of buffered bytes that triggers a write
+     * @return The policy
+     */
+    public static FlushPolicy atBytes(int bytes) {
+        return atBytes(bytes, DEFAULT_MAX_DELAY_MICROS);
+    }
+
+    /**
+     * Write when the given number of bytes has been collected, or when the
+     * first buffered command has waited for the given time.
+     *
+     * @param bytes Number of buffered bytes that triggers a write
+     * @param maxDelayMicros How long the first buffered command may wait
+     * @return The policy
+     */
+    public static FlushPolicy atBytes(int bytes, long maxDelayMicros) {
+        if (bytes <= 0 || maxDelayMicros <= 0) {
+            throw new IllegalArgumentException(
+                    "Size and delay must be positive");
+        }
+        return new FlushPolicy(bytes,
+                TimeUnit.MICROSECONDS.toNanos(maxDelayMicros));
+    }
+
+    int getFlushBytes() {
+        return flushBytes;
+    }
+
+    long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    @Override
+    public String toString() {
+        if (this == IMMEDIATE) {
+            return "immediate";
+        } else if (flushBytes == Integer.MAX_VALUE) {
+            return "after " + maxDelayNanos / 1000 + "us";
+        } else {
+            return "at " + flushBytes + " bytes or " + maxDelayNanos / 1000
+                    + "us";
+        }
+    }
+}
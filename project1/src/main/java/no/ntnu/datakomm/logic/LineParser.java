@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes read from the socket into lines, directly in the read
+ * buffer. Does not allocate: every line is handed over in the same reusable
+ * CommandLine object.
+ */
+final class LineParser {
+
+    private final CommandLine line = new CommandLine();
+
+    /**
+     * Hand every complete line in the buffer to the listener. The buffer must
+     * be array-backed and in read mode (flipped). When the method returns the
+     * buffer position points at the start of the incomplete line left at the
+     * end, if any. A "\r\n" terminator is accepted as well as "\n".
+     *
+     * @param buffer Bytes received from the server
+     * @param listener Receives the lines
+     */
+    void parse(ByteBuffer buffer, TransportListener listener) {
+        byte[] bytes = buffer.array();
+        int offset = buffer.arrayOffset();
+        int lineStart = offset + buffer.position();
+        int limit = offset + buffer.limit();
+        for (int i = lineStart; i < limit; ++i) {
+            if (bytes[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    --lineEnd;
+                }
+                line.set(bytes, lineStart, lineEnd);
+                listener.onLineReceived(line);
+                lineStart = i + 1;
+            }
+        }
+        buffer.position(lineStart - offset);
+    }
+}
@@ -0,0 +1,94 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import no.ntnu.datakomm.facade.ChatListener;
+
+/**
+ * The registered listeners, published as an immutable array. Adding or
+ * removing a listener copies the array and swaps it in atomically, so the
+ * reading thread can notify listeners with a plain loop over a snapshot: no
+ * locks, no iterator, and a listener may add or remove listeners while it is
+ * being notified.
+ */
+final class ListenerRegistry {
+
+    private static final ChatListener[] NONE = new ChatListener[0];
+
+    private final AtomicReference<ChatListener[]> listeners
+            = new AtomicReference<>(NONE);
+
+    /**
+     * Register a listener, unless it is registered already.
+     *
+     * @param listener The listener
+     * @return True if the listener was added
+     */
+    boolean add(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            if (indexOf(current, listener) >= 0) {
+                return false;
+            }
+            ChatListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener The listener
+     * @return True if the listener was registered
+     */
+    boolean remove(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            ChatListener[] updated = NONE;
+            if (current.length > 1) {
+                updated = new ChatListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index,
+                        current.length - index - 1);
+            }
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private static int indexOf(ChatListener[] array, ChatListener listener) {
+        ChatListener wanted = unwrap(listener);
+        for (int i = 0; i < array.length; ++i) {
+            if (unwrap(array[i]).equals(wanted)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The listener itself, not the wrapper that times it
+     */
+    private static ChatListener unwrap(ChatListener listener) {
+        return listener instanceof TimedListener
+                ? ((TimedListener) listener).getListener() : listener;
+    }
+
+    /**
+     * Get the listeners registered right now. The array must not be
+     * modified.
+     *
+     * @return The current listeners
+     */
+    ChatListener[] snapshot() {
+        return listeners.get();
+    }
+}
@@ -0,0 +1,94 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pool of user names, so that all messages from the same sender share one
+ * String instead of each holding its own copy. A name is looked up straight
+ * from the bytes of the received line: when it is in the pool, no String is
+ * created at all.
+ *
+ * The pool has a fixed number of slots and each name has one slot, picked by
+ * its hash. A name that lands in an occupied slot replaces the old one, so
+ * the pool never grows; with a few hundred active users almost every lookup
+ * hits. The slots are read and written without locking: an entry is
+ * immutable, so a reader sees either the old or the new one, and at worst a
+ * name is decoded twice.
+ */
+final class NameInterner {
+
+    /**
+     * A pooled name and its UTF-8 bytes, compared against the received ones.
+     */
+    private static final class Entry {
+
+        final byte[] bytes;
+        final String name;
+
+        Entry(byte[] bytes, String name) {
+            this.bytes = bytes;
+            this.name = name;
+        }
+    }
+
+    private final Entry[] slots;
+    private final int mask;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    NameInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Entry[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Get the pooled String for a part of the parameters of a line.
+     *
+     * @param line The received line
+     * @param from Offset within the parameters, inclusive
+     * @param to Offset within the parameters, exclusive
+     * @return The name, the same instance for the same bytes as long as it
+     * stays in the pool
+     */
+    String intern(CommandLine line, int from, int to) {
+        // FNV-1a
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; ++i) {
+            hash = (hash ^ line.paramsByte(i)) * 0x01000193;
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = slots[slot];
+        if (entry != null && matches(entry.bytes, line, from, to)) {
+            return entry.name;
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; ++i) {
+            bytes[i - from] = line.paramsByte(i);
+        }
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        slots[slot] = new Entry(bytes, name);
+        return name;
+    }
+
+    private static boolean matches(byte[] bytes, CommandLine line, int from,
+            int to) {
+        if (bytes.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; ++i) {
+            if (bytes[i] != line.paramsByte(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of slots
+     */
+    int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,268 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Transport over a non-blocking SocketChannel. The connection does not own a
+ * thread: reads and queued writes are handled by one of the shared selector
+ * threads, see SelectorPool.
+ *
+ * What the socket does not take is copied and sent when it has room. Above
+ * MAX_PENDING_BYTES of such data the transport is not writable, so that the
+ * OutboundQueue stops draining and its bounded lanes push back on senders.
+ */
+class NioTransport implements Transport {
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final SocketChannel channel;
+    private final TransportListener listener;
+    private final SelectorLoop loop;
+
+    // The fields below are only touched on the selector thread
+    private SelectionKey key;
+    private boolean reading = false;
+    private final LineParser parser = new LineParser();
+    // Bytes of an incomplete line left over from the previous read
+    private byte[] partialLine = NO_BYTES;
+    private int partialLength = 0;
+
+    // Above this many unsent bytes the transport is not writable
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    // Writes that did not fit in the socket send buffer. Guarded by itself,
+    // like the two fields after it.
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    // Run when the pending bytes drop below the limit again
+    private Runnable writableAction;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Open a TCP connection and attach it to one of the selector threads.
+     * The connect itself is blocking, like with a plain Socket.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @param timeoutMillis How long to wait for the server to accept the
+     * connection
+     * @param listener Listener for incoming lines
+     * @throws IOException when the connection could not be established
+     */
+    NioTransport(String host, int port, int timeoutMillis,
+            TransportListener listener) throws IOException {
+        this.listener = listener;
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, timeoutMillis);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        loop = SelectorPool.shared().next();
+        loop.execute(this::register);
+    }
+
+    /**
+     * Register the channel with the selector. Runs on the selector thread.
+     */
+    private void register() {
+        if (closed) {
+            return;
+        }
+        try {
+            key = channel.register(loop.selector(), 0, this);
+            updateInterest();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void startReading() {
+        loop.execute(() -> {
+            reading = true;
+            updateInterest();
+        });
+    }
+
+    /**
+     * Set the operations we wait for: read once reading has started, write
+     * while some data could not be sent. Runs on the selector thread.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = reading ? SelectionKey.OP_READ : 0;
+        synchronized (pendingWrites) {
+            if (!pendingWrites.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Read what is available and hand every complete line to the listener,
+     * parsed in place in the read buffer. Runs on the selector thread.
+     *
+     * @param buffer Read buffer shared by the connections of the loop
+     */
+    void handleReadable(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.put(partialLine, 0, partialLength);
+        int count;
+        try {
+            count = channel.read(buffer);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (count < 0) {
+            // The server closed the socket
+            fail(null);
+            return;
+        }
+
+        listener.onBytesReceived(count);
+        buffer.flip();
+        parser.parse(buffer, listener);
+        keepPartialLine(buffer);
+        listener.onReadComplete();
+    }
+
+    /**
+     * Remember the bytes of a line that is not complete yet: the buffer is
+     * shared with other connections and will be overwritten.
+     */
+    private void keepPartialLine(ByteBuffer buffer) {
+        partialLength = buffer.remaining();
+        if (partialLength == SelectorLoop.READ_BUFFER_SIZE) {
+            fail(new IOException("Line from server is too long"));
+            return;
+        }
+        if (partialLength > partialLine.length) {
+            partialLine = new byte[Math.max(partialLength, 256)];
+        }
+        buffer.get(partialLine, 0, partialLength);
+    }
+
+    /**
+     * Send the writes that were queued while the socket buffer was full.
+     * Runs on the selector thread.
+     */
+    void handleWritable() {
+        Runnable action = null;
+        synchronized (pendingWrites) {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer head = pendingWrites.peek();
+                int written;
+                try {
+                    written = channel.write(head);
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                pendingBytes -= written;
+                if (head.hasRemaining()) {
+                    break;
+                }
+                pendingWrites.poll();
+            }
+            if (pendingBytes < MAX_PENDING_BYTES) {
+                action = writableAction;
+                writableAction = null;
+            }
+        }
+        updateInterest();
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    @Override
+    public boolean write(ByteBuffer data) {
+        if (closed) {
+            return false;
+        }
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty()) {
+                // Nothing queued, try to write directly on this thread
+                try {
+                    channel.write(data);
+                } catch (IOException e) {
+                    loop.execute(() -> fail(e));
+                    return false;
+                }
+                if (!data.hasRemaining()) {
+                    return true;
+                }
+            }
+            // The caller reuses its buffer, keep a copy of the rest
+            ByteBuffer rest = ByteBuffer.allocate(data.remaining());
+            rest.put(data);
+            rest.flip();
+            pendingWrites.add(rest);
+            pendingBytes += rest.remaining();
+        }
+        loop.execute(this::updateInterest);
+        return true;
+    }
+
+    @Override
+    public boolean isWritable() {
+        synchronized (pendingWrites) {
+            return pendingBytes < MAX_PENDING_BYTES;
+        }
+    }
+
+    @Override
+    public void whenWritable(Runnable action) {
+        synchronized (pendingWrites) {
+            if (pendingBytes >= MAX_PENDING_BYTES && !closed) {
+                writableAction = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Close the channel because of an error or end of stream and notify the
+     * listener, unless the transport was already closed.
+     *
+     * @param cause The error, null on end of stream
+     */
+    private void fail(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // We are giving up on this channel anyway
+        }
+        listener.onTransportClosed(cause);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        // Closing the channel also cancels its selection key
+        channel.close();
+    }
+}
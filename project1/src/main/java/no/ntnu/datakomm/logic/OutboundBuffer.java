@@ -0,0 +1,222 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects outgoing command lines and writes them to the transport in
+ * batches, as decided by a FlushPolicy. Every write() on the transport is one
+ * system call, so the write count tells how well the batching works.
+ */
+final class OutboundBuffer {
+
+    static final int CAPACITY = 16 * 1024;
+
+    // One timer thread flushes the delayed buffers of all connections
+    private static final ScheduledExecutorService FLUSH_TIMER;
+    // A write on a blocking socket can wait for as long as the server does
+    // not read. Those flushes run here instead of on the timer thread, so
+    // that one stalled connection does not delay the others.
+    private static final ExecutorService BLOCKING_FLUSHERS;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                1, r -> {
+                    Thread t = new Thread(r, "chat-flush-timer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        timer.setRemoveOnCancelPolicy(true);
+        FLUSH_TIMER = timer;
+        AtomicInteger threadCount = new AtomicInteger();
+        BLOCKING_FLUSHERS = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r,
+                    "chat-flush-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final Transport transport;
+    private final FlushPolicy policy;
+    private final boolean blockingWrites;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CAPACITY);
+
+    // A timed flush is pending. Guarded by this.
+    private boolean flushScheduled = false;
+    private boolean open = true;
+
+    private final AtomicLong lineCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * @param transport Where the bytes are written, without blocking
+     * @param policy When the bytes are written
+     */
+    OutboundBuffer(Transport transport, FlushPolicy policy) {
+        this(transport, policy, false);
+    }
+
+    /**
+     * @param transport Where the bytes are written
+     * @param policy When the bytes are written
+     * @param blockingWrites True if a write on the transport can block,
+     * the delayed flushes then get their own thread
+     */
+    OutboundBuffer(Transport transport, FlushPolicy policy,
+            boolean blockingWrites) {
+        this.transport = transport;
+        this.policy = policy;
+        this.blockingWrites = blockingWrites;
+    }
+
+    /**
+     * Add one command line. It is written now or later, depending on the
+     * policy.
+     *
+     * @param line The line, without newline
+     * @return False if the line could not be written because the connection
+     * is closed
+     */
+    synchronized boolean append(String line) {
+        if (!open) {
+            return false;
+        }
+        lineCount.incrementAndGet();
+        if (!encode(line)) {
+            // The line does not fit behind what is buffered: send that first
+            if (!flush()) {
+                return false;
+            }
+            if (!encode(line)) {
+                // Longer than the whole buffer, write it on its own
+                writeCount.incrementAndGet();
+                return transport.write(ByteBuffer.wrap(
+                        (line + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        if (buffer.position() >= policy.getFlushBytes()) {
+            return flush();
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Runnable flush = blockingWrites
+                    ? () -> BLOCKING_FLUSHERS.execute(this::timedFlush)
+                    : this::timedFlush;
+            FLUSH_TIMER.schedule(flush, policy.getMaxDelayNanos(),
+                    TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Put the line and a newline in the buffer, as UTF-8. Plain ASCII is
+     * copied char by char, without creating a byte array.
+     *
+     * @return False if the line did not fit, the buffer is then unchanged
+     */
+    private boolean encode(String line) {
+        int length = line.length();
+        if (buffer.remaining() < length + 1) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < length; ++i) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII, let the JDK encoder do the work
+                buffer.position(start);
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < bytes.length + 1) {
+                    return false;
+                }
+                buffer.put(bytes);
+                break;
+            }
+            buffer.put((byte) c);
+        }
+        buffer.put((byte) '\n');
+        return true;
+    }
+
+    /**
+     * Called when the first buffered line has waited long enough: on the
+     * timer thread, or on a thread of its own for blocking transports.
+     */
+    private synchronized void timedFlush() {
+        flushScheduled = false;
+        flush();
+    }
+
+    /**
+     * Write everything that is buffered.
+     *
+     * @return False if the transport is closed
+     */
+    synchronized boolean flush() {
+        if (buffer.position() == 0) {
+            return open;
+        }
+        buffer.flip();
+        writeCount.incrementAndGet();
+        boolean written = transport.write(buffer);
+        buffer.clear();
+        if (!written) {
+            open = false;
+        }
+        return written;
+    }
+
+    /**
+     * Write what is buffered and refuse further lines.
+     */
+    synchronized void close() {
+        flush();
+        open = false;
+    }
+
+    /**
+     * @return True if a write on the transport can block
+     */
+    boolean hasBlockingWrites() {
+        return blockingWrites;
+    }
+
+    /**
+     * @return False while the transport has too much unsent data, more
+     * lines should wait for whenWritable()
+     */
+    boolean isWritable() {
+        return transport.isWritable();
+    }
+
+    /**
+     * Run an action once the transport is writable again.
+     *
+     * @param action What to run, must be short
+     */
+    void whenWritable(Runnable action) {
+        transport.whenWritable(action);
+    }
+
+    /**
+     * @return Number of lines given to append()
+     */
+    long getLineCount() {
+        return lineCount.get();
+    }
+
+    /**
+     * @return Number of writes (system calls) on the transport
+     */
+    long getWriteCount() {
+        return writeCount.get();
+    }
+}
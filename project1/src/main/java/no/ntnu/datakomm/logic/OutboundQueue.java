@@ -0,0 +1,296 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.datakomm.data.MessageAck;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Commands waiting to be written to the server. Sending only puts the
+ * command in a queue and returns; a writer thread moves the commands to the
+ * socket. Control commands (login, users, help) have their own lane, which is
+ * always emptied before the next chat message is written.
+ *
+ * The writer threads are shared by all clients: a queue gets a writer only
+ * while it has something to send. Writes on a blocking socket can wait for
+ * as long as the server does not read, so those queues are drained by
+ * threads of a cached pool instead, one per queue that is writing. When the transport has too much unsent
+ * data, the writer stops until the transport is writable again; meanwhile
+ * the lanes fill up and refuse new commands.
+ */
+final class OutboundQueue {
+
+    static final int CONTROL_CAPACITY = 256;
+    static final int CHAT_CAPACITY = 8192;
+
+    // Drain queues whose writes do not block
+    private static final ExecutorService WRITERS;
+    // Drain queues whose writes can block
+    private static final ExecutorService BLOCKING_WRITERS;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        WRITERS = Executors.newFixedThreadPool(Math.max(2, cpus / 2), r -> {
+            Thread t = new Thread(r,
+                    "chat-writer-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger blockingCount = new AtomicInteger();
+        BLOCKING_WRITERS = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r,
+                    "chat-blocking-writer-" + blockingCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * A command and the time it was queued.
+     */
+    private static final class QueuedCommand {
+
+        final String line;
+        final long queuedNanos;
+        // Chat messages get a msgok/msgerr reply, the future (if any) is
+        // completed with it
+        final boolean expectsAck;
+        final CompletableFuture<MessageAck> ack;
+
+        QueuedCommand(String line, long queuedNanos, boolean expectsAck,
+                CompletableFuture<MessageAck> ack) {
+            this.line = line;
+            this.queuedNanos = queuedNanos;
+            this.expectsAck = expectsAck;
+            this.ack = ack;
+        }
+    }
+
+    private final BoundedMpscQueue<QueuedCommand> controlLane
+            = new BoundedMpscQueue<>(CONTROL_CAPACITY);
+    private final BoundedMpscQueue<QueuedCommand> chatLane
+            = new BoundedMpscQueue<>(CHAT_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final LatencyHistogram wireLatency = new LatencyHistogram();
+    private final AckCorrelator acks;
+    // A command that could not be written, sent first when the queue is
+    // drained again. Only changed while draining.
+    private volatile QueuedCommand retry;
+
+    // Where the commands are written, null while not connected
+    private volatile OutboundBuffer target;
+
+    /**
+     * @param acks Told about every chat message when it is written, so that
+     * the server's replies can be matched to it
+     */
+    OutboundQueue(AckCorrelator acks) {
+        this.acks = acks;
+    }
+
+    /**
+     * Queue a control command for sending. It skips ahead of queued chat
+     * messages.
+     *
+     * @param line The command line, without newline
+     * @return False if the lane is full
+     */
+    boolean offerControl(String line) {
+        return offer(controlLane,
+                new QueuedCommand(line, System.nanoTime(), false, null));
+    }
+
+    /**
+     * Queue a chat message (msg or privmsg) for sending.
+     *
+     * @param line The command line, without newline
+     * @param ack Completed when the server replies, may be null
+     * @return False if the lane is full
+     */
+    boolean offerMessage(String line, CompletableFuture<MessageAck> ack) {
+        return offer(chatLane,
+                new QueuedCommand(line, System.nanoTime(), true, ack));
+    }
+
+    private boolean offer(BoundedMpscQueue<QueuedCommand> lane,
+            QueuedCommand command) {
+        if (!lane.offer(command)) {
+            return false;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Set where the commands are written. Queued commands are kept while the
+     * target is null.
+     *
+     * @param target Buffer of the current connection, or null
+     */
+    synchronized void setTarget(OutboundBuffer target) {
+        this.target = target;
+        if (target != null) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Stop writing to a connection that is going away: close its buffer and
+     * fail the messages waiting for a reply on it. Holds the drain lock, so
+     * a drain in progress finishes first and no message is registered with
+     * the correlator after the replies are given up. Queued commands are
+     * kept for the next target.
+     *
+     * @param out Buffer of the connection, may be null
+     * @param cause Why the replies will not come
+     */
+    synchronized void detach(OutboundBuffer out, IOException cause) {
+        target = null;
+        if (out != null) {
+            out.close();
+        }
+        acks.failAll(cause);
+    }
+
+    /**
+     * Make sure a writer thread will empty the queue.
+     */
+    private void scheduleDrain() {
+        OutboundBuffer out = target;
+        if (out != null && drainScheduled.compareAndSet(false, true)) {
+            writersFor(out).execute(this::runDrain);
+        }
+    }
+
+    private static ExecutorService writersFor(OutboundBuffer out) {
+        return out.hasBlockingWrites() ? BLOCKING_WRITERS : WRITERS;
+    }
+
+    /**
+     * Write the queued commands and what the target buffers, on a writer
+     * thread, so that the caller can decide how long to wait.
+     *
+     * @return Done when everything was handed to the transport, or the
+     * transport did not take more
+     */
+    Future<?> flushAsync() {
+        OutboundBuffer out = target;
+        if (out == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return writersFor(out).submit(() -> {
+            drain();
+            out.flush();
+        });
+    }
+
+    /**
+     * Runs on a writer thread.
+     */
+    private void runDrain() {
+        boolean full = !drain();
+        drainScheduled.set(false);
+        OutboundBuffer out = target;
+        if (full && out != null) {
+            // Continue once the socket has taken enough of what is queued
+            out.whenWritable(this::scheduleDrain);
+        } else if (!isEmpty()) {
+            // A command may have arrived after drain() found the queue
+            // empty, but before the flag was cleared
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Write the queued commands to the target, control lane first. Can be
+     * called on any thread; only one thread drains at a time.
+     *
+     * @return False if it stopped because the target was not writable
+     */
+    synchronized boolean drain() {
+        OutboundBuffer out = target;
+        if (out == null) {
+            return true;
+        }
+        QueuedCommand command;
+        while ((command = next()) != null) {
+            if (!out.isWritable()) {
+                retry = command;
+                return false;
+            }
+            AckCorrelator.PendingAck pending = null;
+            if (command.expectsAck) {
+                // Register before writing, the reply may come quickly
+                pending = acks.expect(command.ack, command.queuedNanos);
+            }
+            if (!out.append(command.line)) {
+                // The connection is closed: no reply will come for this
+                // command. Keep it for the next connection, or for clear(),
+                // and stop writing to the closed buffer.
+                if (pending != null) {
+                    acks.cancel(pending);
+                }
+                retry = command;
+                if (target == out) {
+                    target = null;
+                }
+                return true;
+            }
+            wireLatency.record(System.nanoTime() - command.queuedNanos);
+        }
+        return true;
+    }
+
+    /**
+     * @return The next command to write, control commands first
+     */
+    private QueuedCommand next() {
+        if (retry != null) {
+            QueuedCommand command = retry;
+            retry = null;
+            return command;
+        }
+        QueuedCommand command = controlLane.poll();
+        return command != null ? command : chatLane.poll();
+    }
+
+    /**
+     * Throw away all queued commands. Their futures fail with the given
+     * cause.
+     *
+     * @param cause Why the commands were not sent
+     */
+    synchronized void clear(IOException cause) {
+        QueuedCommand command;
+        while ((command = next()) != null) {
+            if (command.ack != null) {
+                command.ack.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * @return Number of commands waiting in both lanes
+     */
+    int size() {
+        return controlLane.size() + chatLane.size() + (retry != null ? 1 : 0);
+    }
+
+    boolean isEmpty() {
+        return retry == null && controlLane.isEmpty() && chatLane.isEmpty();
+    }
+
+    /**
+     * @return Time from queueing a command until it was handed to the
+     * socket (or to the write buffer, when the flush policy delays writes)
+     */
+    LatencyHistogram getWireLatency() {
+        return wireLatency;
+    }
+}
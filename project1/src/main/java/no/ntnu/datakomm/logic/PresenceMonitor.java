@@ -0,0 +1,216 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatClientFacade;
+import no.ntnu.datakomm.facade.ChatListener;
+
+/**
+ * Keeps the user list of a connection up to date. When the server announces
+ * users who join and leave (it lists the JOIN_COMMAND and LEAVE_COMMAND in
+ * its supported commands), the client follows those and no polling is
+ * needed. Otherwise the user list is polled: the interval doubles every time
+ * the list comes back unchanged, up to MAX_INTERVAL_MILLIS, and drops to
+ * MIN_INTERVAL_MILLIS as soon as it changes.
+ *
+ * The listeners of the client get the user lists as usual, this class only
+ * decides when to ask for them. When the connection is lost the monitor
+ * waits, and starts over once the client has logged in again.
+ */
+public class PresenceMonitor implements ChatListener {
+
+    /**
+     * Sent by the server when a user logs in: "joined username".
+     */
+    public static final String JOIN_COMMAND = "joined";
+    /**
+     * Sent by the server when a user leaves: "left username".
+     */
+    public static final String LEAVE_COMMAND = "left";
+
+    public static final long MIN_INTERVAL_MILLIS = 1000;
+    public static final long MAX_INTERVAL_MILLIS = 60000;
+
+    // One timer thread polls for all connections
+    private static final ScheduledExecutorService POLL_TIMER;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                1, r -> {
+                    Thread t = new Thread(r, "chat-presence-timer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        timer.setRemoveOnCancelPolicy(true);
+        POLL_TIMER = timer;
+    }
+
+    private final ChatClientFacade client;
+
+    // All fields below are guarded by this
+    private boolean running = false;
+    // The connection was lost: polling waits until the client has logged
+    // in again, for example after an automatic reconnect
+    private boolean paused = false;
+    private boolean pushSupported = false;
+    private long intervalMillis = MIN_INTERVAL_MILLIS;
+    private ScheduledFuture<?> nextPoll;
+    // The last user list, sorted
+    private String[] lastUsers;
+
+    /**
+     * @param client A connected client
+     */
+    public PresenceMonitor(ChatClientFacade client) {
+        this.client = client;
+    }
+
+    /**
+     * Start following the user list: ask the server for its supported
+     * commands and for the current users.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        client.addListener(this);
+        resume();
+    }
+
+    /**
+     * Start over, as on a new connection: the server may not be the same.
+     */
+    private void resume() {
+        paused = false;
+        pushSupported = false;
+        intervalMillis = MIN_INTERVAL_MILLIS;
+        lastUsers = null;
+        client.askSupportedCommands();
+        poll();
+    }
+
+    /**
+     * Stop following the user list. When the connection is lost the monitor
+     * only pauses, and starts again when the client logs in again.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        cancelPoll();
+        client.removeListener(this);
+    }
+
+    /**
+     * @return True when the server announces joins and leaves, so the user
+     * list is not polled
+     */
+    public synchronized boolean isPushSupported() {
+        return pushSupported;
+    }
+
+    /**
+     * @return The time until the next poll of the user list, in milliseconds
+     */
+    public synchronized long getPollIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Ask for the user list and schedule the next poll. Runs on the timer
+     * thread, except for the first poll.
+     */
+    private synchronized void poll() {
+        if (!running || paused || pushSupported) {
+            return;
+        }
+        if (!client.isConnectionActive()) {
+            paused = true;
+            return;
+        }
+        client.refreshUserList();
+        schedulePoll(intervalMillis);
+    }
+
+    private void schedulePoll(long delayMillis) {
+        cancelPoll();
+        nextPoll = POLL_TIMER.schedule(this::poll, delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPoll() {
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+    }
+
+    @Override
+    public synchronized void onSupportedCommands(String[] commands) {
+        boolean join = false;
+        boolean leave = false;
+        for (String command : commands) {
+            join |= JOIN_COMMAND.equals(command);
+            leave |= LEAVE_COMMAND.equals(command);
+        }
+        if (running && join && leave && !pushSupported) {
+            // The first poll has already asked for the full list, from now
+            // on the server tells us about the changes
+            pushSupported = true;
+            cancelPoll();
+        }
+    }
+
+    @Override
+    public synchronized void onUserList(String[] usernames) {
+        if (!running || pushSupported) {
+            return;
+        }
+        String[] users = usernames.clone();
+        Arrays.sort(users);
+        if (Arrays.equals(users, lastUsers)) {
+            intervalMillis = Math.min(intervalMillis * 2, MAX_INTERVAL_MILLIS);
+        } else {
+            boolean wasSlow = intervalMillis > MIN_INTERVAL_MILLIS;
+            intervalMillis = MIN_INTERVAL_MILLIS;
+            lastUsers = users;
+            if (wasSlow) {
+                // Do not wait for the long interval that is running now
+                schedulePoll(intervalMillis);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onDisconnect() {
+        if (running) {
+            paused = true;
+            cancelPoll();
+        }
+    }
+
+    @Override
+    public synchronized void onLoginResult(boolean success, String errMsg) {
+        if (running && paused && success) {
+            resume();
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+}
@@ -0,0 +1,148 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Reconnects a TCPClient when the server closes the connection. The delay
+ * before each attempt doubles, up to a maximum, and half of it is random:
+ * when a server restarts, its clients come back spread over time instead of
+ * all at once.
+ *
+ * After reconnecting, the client logs in again with the last username and
+ * sends the commands that were queued meanwhile. The time from losing the
+ * connection until it is back is recorded.
+ */
+public class ReconnectSupervisor {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    // One timer thread waits out the delays of all clients. The attempts
+    // run on their own threads: a connect to an unreachable host must not
+    // hold up the other clients.
+    private static final ScheduledExecutorService RECONNECT_TIMER;
+    private static final ExecutorService CONNECTORS;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                1, r -> {
+                    Thread t = new Thread(r, "chat-reconnect-timer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        timer.setRemoveOnCancelPolicy(true);
+        RECONNECT_TIMER = timer;
+        AtomicInteger threadCount = new AtomicInteger();
+        CONNECTORS = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r,
+                    "chat-reconnect-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+
+    /**
+     * Reconnect with the default delays: 0.5 seconds first, at most 30
+     * seconds.
+     */
+    public ReconnectSupervisor() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param initialDelayMillis Upper bound of the delay before the first
+     * attempt
+     * @param maxDelayMillis Upper bound of the delay between attempts
+     */
+    public ReconnectSupervisor(long initialDelayMillis, long maxDelayMillis) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Bad reconnect delays");
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Start reconnecting. Called by the client when the server closed the
+     * connection.
+     *
+     * @param client The client
+     */
+    void connectionLost(TCPClient client) {
+        scheduleAttempt(client, System.nanoTime(), 0);
+    }
+
+    /**
+     * @return The delay before the given attempt: half of the backoff
+     * fixed, half random
+     */
+    long delayBefore(int attempt) {
+        long backoff = Math.min(maxDelayMillis,
+                initialDelayMillis << Math.min(attempt, 30));
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    private void scheduleAttempt(TCPClient client, long lostNanos,
+            int attempt) {
+        RECONNECT_TIMER.schedule(() -> CONNECTORS.execute(
+                () -> attempt(client, lostNanos, attempt)),
+                delayBefore(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on a connector thread.
+     */
+    private void attempt(TCPClient client, long lostNanos, int attempt) {
+        if (!client.isReconnectWanted()) {
+            return;
+        }
+        attemptCount.incrementAndGet();
+        if (client.reconnect()) {
+            long nanos = System.nanoTime() - lostNanos;
+            recoveryTime.record(nanos);
+            reconnectCount.incrementAndGet();
+            System.out.println("Reconnected after "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                    + (attempt + 1) + " attempts");
+        } else {
+            scheduleAttempt(client, lostNanos, attempt + 1);
+        }
+    }
+
+    /**
+     * @return Histogram of the time from losing the connection until it was
+     * back, in nanoseconds
+     */
+    public LatencyHistogram getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * @return Number of connection attempts made
+     */
+    public long getAttemptCount() {
+        return attemptCount.get();
+    }
+
+    /**
+     * @return Number of successful reconnects
+     */
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+}
@@ -0,0 +1,101 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many NIO connections. All channel registration
+ * and interest changes are executed on this thread, other threads hand them
+ * over through execute().
+ */
+class SelectorLoop implements Runnable {
+
+    // Size of the read buffer shared by all the connections of this loop.
+    // This is also the longest line we can receive.
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Thread thread;
+
+    /**
+     * Create the loop and start its thread.
+     *
+     * @param name Name of the selector thread
+     * @throws IOException when the selector could not be opened
+     */
+    SelectorLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                return;
+            }
+            runTasks();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioTransport transport = (NioTransport) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        transport.handleReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        transport.handleWritable();
+                    }
+                } catch (RuntimeException e) {
+                    // A failing listener must not take down the other
+                    // connections served by this thread
+                    System.err.println("Error while handling connection: "
+                            + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the tasks handed over by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error in selector task: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed set of selector threads shared by all the NIO connections in
+ * the JVM. New connections are spread over the threads round-robin.
+ */
+final class SelectorPool {
+
+    private static SelectorPool shared;
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * @param threadCount Number of selector threads to start
+     * @throws IOException when a selector could not be opened
+     */
+    private SelectorPool(int threadCount) throws IOException {
+        loops = new SelectorLoop[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            loops[i] = new SelectorLoop("chat-selector-" + i);
+        }
+    }
+
+    /**
+     * Get the pool shared by all connections, start it on first use. Uses
+     * half of the available processors, at most four threads.
+     *
+     * @return The shared pool
+     */
+    static synchronized SelectorPool shared() {
+        if (shared == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            try {
+                shared = new SelectorPool(Math.max(1, Math.min(4, cpus / 2)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Pick the selector thread for a new connection.
+     *
+     * @return The selector loop to register the connection with
+     */
+    SelectorLoop next() {
+        int i = nextLoop.getAndIncrement() & Integer.MAX_VALUE;
+        return loops[i % loops.length];
+    }
+}
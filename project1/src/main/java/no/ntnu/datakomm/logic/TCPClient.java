@@ -1,29 +1,188 @@
 package no.ntnu.datakomm.logic;
 
 import no.ntnu.datakomm.facade.ChatListener;
-import no.ntnu.datakomm.facade.ChatClientFacade;
+import no.ntnu.datakomm.facade.AsyncChatClientFacade;
+import no.ntnu.datakomm.facade.MessageRejectedException;
+import no.ntnu.datakomm.data.MessageAck;
 import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.history.MessageJournal;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+import no.ntnu.datakomm.metrics.MetricsRegistry;
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Represents (business) logic of the chat client.
  * Part of it is implemented. Part of the code is missing. See assignment
  * description. Hints are shown in the comments. See for comments with TODO.
  */
-public class TCPClient implements ChatClientFacade {
+public class TCPClient implements AsyncChatClientFacade {
 
-    private InputStream in;
-    private OutputStream out;
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
+    // Print every received line on the console. Off by default, because it
+    // creates a String for each line. Enable with -Dchat.logTraffic=true
+    private static final boolean LOG_TRAFFIC
+            = Boolean.getBoolean("chat.logTraffic");
+    // Sender names and user-list entries, shared by all clients so that a
+    // user's name is kept in memory once, not once per message
+    private static final NameInterner NAMES = new NameInterner(4096);
+    // How long to wait for the server to accept the connection. Without a
+    // limit an unreachable host blocks until the operating system gives up.
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    // How long disconnect() waits for the queued commands to be sent
+    private static final int DISCONNECT_FLUSH_MILLIS = 2000;
+
+    private final TransportMode transportMode;
+    private volatile Transport transport;
+    // Batches outgoing commands into fewer socket writes
+    private volatile OutboundBuffer outbound;
+    private volatile FlushPolicy flushPolicy = FlushPolicy.immediate();
+    // Matches msgok/msgerr replies to the messages we sent
+    private final AckCorrelator acks = new AckCorrelator();
+    // Commands wait here until a writer thread sends them, so sending
+    // never blocks the caller
+    private final OutboundQueue outboundQueue = new OutboundQueue(acks);
 
     private String lastError = null; // Last error message will be stored here
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    // Copy-on-write, so the reading thread never locks to notify listeners
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    // Delivers events to the listeners that run on their own threads
+    private final ChatEventBus eventBus = new ChatEventBus();
+    // Messages parsed from the current read, delivered as one batch. Only
+    // used on the reading thread.
+    private List<TextMessage> receivedMessages = new ArrayList<>();
+    // The users online, sorted: the last user list, updated by the join and
+    // leave announcements. Only used on the reading thread.
+    private final TreeSet<String> roster = new TreeSet<>();
+    // Received messages are stored here, if set
+    private volatile MessageJournal journal;
+    // Records the traffic of the next connections, if set
+    private volatile WireRecorder wireRecorder;
+    // Counters and latencies, read through JMX or a MetricsHttpServer
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private final ClientMetrics metrics = new ClientMetrics(metricsRegistry);
+
+    // Reconnects when the server closes the connection, if set
+    private volatile ReconnectSupervisor reconnectSupervisor;
+    // Where we connected and who we logged in as, used for reconnecting
+    private volatile String lastHost;
+    private volatile int lastPort;
+    private volatile String lastUsername;
+    // The connection was lost and the supervisor is trying to restore it.
+    // Commands are queued meanwhile.
+    private volatile boolean reconnecting = false;
+
+    // Handlers for the commands the server sends, and the lookup table built
+    // from them. The table is rebuilt when a handler is replaced.
+    private final Map<String, CommandHandler> commandHandlers
+            = new LinkedHashMap<>();
+    private volatile CommandDispatcher dispatcher;
+
+    /**
+     * Create a client using the non-blocking (NIO) transport.
+     */
+    public TCPClient() {
+        this(TransportMode.NIO);
+    }
+
+    /**
+     * Create a client using a specific transport.
+     *
+     * @param transportMode NIO to share the selector threads with other
+     * clients, BLOCKING for a socket with its own reading thread
+     */
+    public TCPClient(TransportMode transportMode) {
+        this.transportMode = transportMode;
+        commandHandlers.put("loginok", line -> onLoginResult(true, null));
+        commandHandlers.put("loginerr",
+                line -> onLoginResult(false, line.params()));
+        commandHandlers.put("msg", line -> onMsgReceived(false, line));
+        commandHandlers.put("privmsg", line -> onMsgReceived(true, line));
+        commandHandlers.put("msgok",
+                line -> acks.onAck(line.paramsAsInt(0)));
+        commandHandlers.put("msgerr", line -> {
+            String errMsg = line.params();
+            acks.onError(errMsg);
+            onMsgError(errMsg);
+        });
+        commandHandlers.put("cmderr", line -> onCmdError(line.params()));
+        commandHandlers.put("users", line -> onUsersList(splitParams(line)));
+        commandHandlers.put(PresenceMonitor.JOIN_COMMAND,
+                line -> onUserJoined(line.params()));
+        commandHandlers.put(PresenceMonitor.LEAVE_COMMAND,
+                line -> onUserLeft(line.params()));
+        commandHandlers.put("supported", line -> onHelp(splitParams(line)));
+        rebuildDispatcher();
+
+        metricsRegistry.gauge("chat_connected",
+                () -> transport != null ? 1 : 0);
+        metricsRegistry.gauge("chat_outbound_queue_depth",
+                outboundQueue::size);
+        metricsRegistry.register("chat_outbound_wait_seconds",
+                outboundQueue.getWireLatency());
+        metricsRegistry.register("chat_ack_rtt_seconds", acks.getRoundTrip());
+        metricsRegistry.gauge("chat_reconnects_total", () -> {
+            ReconnectSupervisor supervisor = reconnectSupervisor;
+            return supervisor != null ? supervisor.getReconnectCount() : 0;
+        });
+        metricsRegistry.gauge("chat_reconnect_attempts_total", () -> {
+            ReconnectSupervisor supervisor = reconnectSupervisor;
+            return supervisor != null ? supervisor.getAttemptCount() : 0;
+        });
+    }
+
+    /**
+     * Set the handler for a command received from the server, replacing the
+     * built-in one if there is any. Lets the client understand commands that
+     * are not part of the standard protocol.
+     *
+     * @param command The command, for example "joke"
+     * @param handler Called on the reading thread when the command arrives,
+     * null to remove the handler
+     */
+    public synchronized void setCommandHandler(String command,
+            CommandHandler handler) {
+        if (handler != null) {
+            commandHandlers.put(command, handler);
+        } else {
+            commandHandlers.remove(command);
+        }
+        rebuildDispatcher();
+    }
+
+    /**
+     * Build a new dispatch table from the current handlers. Commands we have
+     * no handler for are ignored.
+     */
+    private void rebuildDispatcher() {
+        // Count every command on its way to the handler
+        Map<String, CommandHandler> counted = new LinkedHashMap<>();
+        for (Map.Entry<String, CommandHandler> entry
+                : commandHandlers.entrySet()) {
+            LongAdder count = metrics.commandCounter(entry.getKey());
+            CommandHandler handler = entry.getValue();
+            counted.put(entry.getKey(), line -> {
+                count.increment();
+                handler.handle(line);
+            });
+        }
+        LongAdder unknown = metrics.commandCounter("unknown");
+        dispatcher = new CommandDispatcher(counted,
+                line -> unknown.increment());
+    }
 
     /**
      * Connect to a chat server.
@@ -34,31 +193,75 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public boolean connect(String host, int port) {
+        Transport t = openTransport(host, port);
+        if (t == null) {
+            return false;
+        }
+        synchronized (this) {
+            attach(t);
+            lastHost = host;
+            lastPort = port;
+            outboundQueue.setTarget(outbound);
+        }
+        return true;
+    }
+
+    /**
+     * Open the socket. Does not hold the lock of the client, so that
+     * disconnect() does not wait for a slow connect.
+     *
+     * @return The transport, null if the connection failed
+     */
+    private Transport openTransport(String host, int port) {
         try {
             System.out.println("Connecting to " + host + ", port " + port);
             // Open TCP connection to the server
-            connection = new Socket(host, port);
-            // Set up input and output streams
-            in = connection.getInputStream();
-            out = connection.getOutputStream();
-            toServer = new PrintWriter(out, true);
-            fromServer = new BufferedReader(new InputStreamReader(in));
-            return true;
+            TransportListener handler = createReplyHandler();
+            WireRecorder recorder = wireRecorder;
+            if (recorder != null) {
+                handler = recorder.tap(handler);
+            }
+            Transport t;
+            if (transportMode == TransportMode.NIO) {
+                t = new NioTransport(host, port, CONNECT_TIMEOUT_MILLIS,
+                        handler);
+            } else {
+                t = new BlockingTransport(host, port, CONNECT_TIMEOUT_MILLIS,
+                        handler);
+            }
+            if (recorder != null) {
+                t = recorder.tap(t);
+            }
+            return metrics.tap(t);
         } catch (UnknownHostException e) {
             lastError = "Unknown host";
             System.err.println(lastError);
-            return false;
+            return null;
         } catch (ConnectException e) {
             lastError = "No chat server listening on given port";
             System.err.println(lastError);
-            return false;
+            return null;
+        } catch (SocketTimeoutException e) {
+            lastError = "The chat server did not answer";
+            System.err.println(lastError);
+            return null;
         } catch (IOException e) {
             lastError = "I/O error for the socket";
             System.err.println(lastError);
-            return false;
+            return null;
         }
     }
 
+    /**
+     * Use a new connection and create its write buffer. Queued commands are
+     * not sent until the buffer is given to the queue.
+     */
+    private void attach(Transport t) {
+        transport = t;
+        outbound = new OutboundBuffer(transport, flushPolicy,
+                transportMode == TransportMode.BLOCKING);
+    }
+
     /**
      * Close the socket. This method must be synchronized, because several
      * threads may try to call it. For example: When "Disconnect" button is
@@ -70,24 +273,178 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public synchronized void disconnect() {
-        if (connection != null) {
+        // Also stops reconnecting
+        reconnecting = false;
+        if (transport != null) {
             System.out.println("Disconnecting...");
+            // Send what is still waiting in the queue and the buffer, but
+            // do not wait for a server that does not read
+            boolean flushed = false;
+            try {
+                outboundQueue.flushAsync().get(DISCONNECT_FLUSH_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                flushed = true;
+            } catch (TimeoutException e) {
+                System.out.println("Server does not read, closing now");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // The transport failed, nothing more will be written
+                flushed = true;
+            }
+            if (!flushed) {
+                // Makes the stalled write fail, what is left is dropped
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    // Closed again below
+                }
+            }
+            IOException closed = new IOException("Disconnected");
+            // No replies will come for the messages on the wire
+            outboundQueue.detach(outbound, closed);
+            outboundQueue.clear(closed);
             try {
                 // Close the socket and streams
-                toServer.close();
-                fromServer.close();
-                connection.close();
+                transport.close();
             } catch (IOException e) {
                 System.out.println("Error while closing connection: "
                         + e.getMessage());
                 lastError = e.getMessage();
-                connection = null;
             }
         } else {
+            // Commands queued while waiting to reconnect will not be sent
+            outboundQueue.clear(new IOException("Disconnected"));
             System.out.println("No connection to close");
         }
         System.out.println("Disconnected");
-        connection = null;
+        transport = null;
+    }
+
+    /**
+     * Clean up after the server closed the connection, keeping the queued
+     * commands for when the connection is back.
+     */
+    private synchronized void connectionLost() {
+        if (transport == null) {
+            return;
+        }
+        // No replies will come for the messages on the wire
+        outboundQueue.detach(outbound, new IOException("Connection lost"));
+        try {
+            transport.close();
+        } catch (IOException e) {
+            lastError = e.getMessage();
+        }
+        transport = null;
+        reconnecting = true;
+    }
+
+    /**
+     * Connect again to the last server, log in with the last username and
+     * send the commands queued meanwhile. Called by the ReconnectSupervisor.
+     *
+     * @return True when the connection is back
+     */
+    boolean reconnect() {
+        if (!reconnecting) {
+            return false;
+        }
+        // Connect without holding the lock, disconnect() may be called
+        // meanwhile
+        Transport t = openTransport(lastHost, lastPort);
+        if (t == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (!reconnecting) {
+                // Disconnected by the user while connecting
+                try {
+                    t.close();
+                } catch (IOException e) {
+                    // Not used yet, nothing to clean up
+                }
+                return false;
+            }
+            attach(t);
+            reconnecting = false;
+            String username = lastUsername;
+            if (username != null) {
+                // Control commands go before the queued chat messages
+                outboundQueue.offerControl("login " + username);
+            }
+            transport.startReading();
+            outboundQueue.setTarget(outbound);
+        }
+        return true;
+    }
+
+    /**
+     * @return True while the connection is lost and should be restored
+     */
+    boolean isReconnectWanted() {
+        return reconnecting;
+    }
+
+    /**
+     * Reconnect automatically when the server closes the connection. Commands
+     * sent while the connection is down are queued and sent after logging in
+     * again. A call to disconnect() stops reconnecting.
+     *
+     * @param supervisor Decides when to retry, null to not reconnect
+     */
+    public void setReconnectSupervisor(ReconnectSupervisor supervisor) {
+        this.reconnectSupervisor = supervisor;
+    }
+
+    /**
+     * @return The reconnect supervisor, null if the client does not
+     * reconnect
+     */
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return reconnectSupervisor;
+    }
+
+    /**
+     * Set when buffered commands are written to the socket. Takes effect on
+     * the next connect().
+     *
+     * @param flushPolicy The policy, FlushPolicy.immediate() by default
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Store every received message in a journal. The journal writes on its
+     * own thread, reading from the server does not wait for the disk.
+     *
+     * @param journal The journal, null to stop storing messages
+     */
+    public void setJournal(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Record the traffic of the connections opened from now on, including
+     * reconnects. See WireReplay for playing it back.
+     *
+     * @param recorder Where to record, null to stop recording new
+     * connections
+     */
+    public void setWireRecorder(WireRecorder recorder) {
+        wireRecorder = recorder;
+    }
+
+    /**
+     * Get the client's metrics: traffic, commands, parse and listener times,
+     * queue depth, reconnects and round-trip times. Register them with JMX
+     * or serve them with a MetricsHttpServer.
+     *
+     * @return The metrics
+     */
+    public MetricsRegistry getMetrics() {
+        return metricsRegistry;
     }
 
     /**
@@ -97,20 +454,77 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public boolean isConnectionActive() {
-        return connection != null;
+        return transport != null;
+    }
+
+    /**
+     * Get the number of commands waiting to be written to the socket.
+     *
+     * @return Number of queued commands
+     */
+    public int getOutboundQueueDepth() {
+        return outboundQueue.size();
     }
 
     /**
-     * Send a command to server - one line of text.
+     * Get the statistics of the time commands spend in the outbound queue
+     * before they are written to the socket.
+     *
+     * @return Histogram of the queue-to-wire latency
+     */
+    public LatencyHistogram getOutboundLatency() {
+        return outboundQueue.getWireLatency();
+    }
+
+    /**
+     * Get the statistics of the time from sending a chat message until the
+     * server confirmed or refused it.
+     *
+     * @return Histogram of the round-trip time
+     */
+    public LatencyHistogram getAckLatency() {
+        return acks.getRoundTrip();
+    }
+
+    /**
+     * Send a command to server - one line of text. The command is queued and
+     * written by a writer thread, this method does not wait for the socket.
+     * Control commands (login, users, help) are sent before any queued chat
+     * messages.
      *
      * @param cmd
      * @return true on success, false otherwise
      */
     private boolean sendCommand(String cmd) {
-        // TODO - Step 2 - implement this method. 
-        // Hint: use variable toServer which is a writer for the output stream
-        // Hint: you should check if the connection is active
-        return false;
+        if (transport == null && !reconnecting) {
+            lastError = "Not connected to the server";
+            return false;
+        }
+        if (!outboundQueue.offerControl(cmd)) {
+            lastError = "Too many commands waiting to be sent";
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a chat message for sending, like sendCommand().
+     *
+     * @param cmd
+     * @param ack Completed with the server's reply, may be null
+     * @return true on success, false otherwise
+     */
+    private boolean sendMessageCommand(String cmd,
+            CompletableFuture<MessageAck> ack) {
+        if (transport == null && !reconnecting) {
+            lastError = "Not connected to the server";
+            return false;
+        }
+        if (!outboundQueue.offerMessage(cmd, ack)) {
+            lastError = "Too many messages waiting to be sent";
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -120,7 +534,8 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public void tryLogin(String username) {
-        // TODO - Step 3 - implement it. Reuse sendCommand() method.
+        lastUsername = username;
+        sendCommand("login " + username);
     }
 
     /**
@@ -129,7 +544,7 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public void refreshUserList() {
-        // TODO - Step 5 - implement it. Reuse sendCommand() method.
+        sendCommand("users");
     }
 
     /**
@@ -137,7 +552,7 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public void askSupportedCommands() {
-        // TODO - Step 8 - implement it. Reuse sendCommand() method.
+        sendCommand("help");
     }
 
     /**
@@ -161,19 +576,36 @@ public class TCPClient implements ChatClientFacade {
      *
      * @param cmd The command to be used for the message: msg or privmsg
      * @param message
+     * @param ack Completed with the server's reply, may be null
      * @return
      */
-    private boolean sendTextMessage(String cmd, String recipient, String message) {
+    private boolean sendTextMessage(String cmd, String recipient, String message,
+            CompletableFuture<MessageAck> ack) {
         if (!isValidMessage(message)) {
             return false;
         }
-        String cmdToSend = cmd + " ";
-        if (recipient != null && cmdToSend.length() > 0) {
-            cmdToSend += recipient + " ";
+        return sendMessageCommand(formatTextMessage(cmd, recipient, message),
+                ack);
+    }
+
+    /**
+     * Build the command line for a public or private message.
+     *
+     * @param cmd msg or privmsg
+     * @param recipient Username of the recipient, null for public messages
+     * @param message The message text
+     * @return The command, without newline
+     */
+    static String formatTextMessage(String cmd, String recipient,
+            String message) {
+        int length = cmd.length() + 1 + message.length()
+                + (recipient != null ? recipient.length() + 1 : 0);
+        StringBuilder line = new StringBuilder(length);
+        line.append(cmd).append(' ');
+        if (recipient != null) {
+            line.append(recipient).append(' ');
         }
-        cmdToSend += message;
-        sendCommand(cmdToSend);
-        return true;
+        return line.append(message).toString();
     }
 
     /**
@@ -186,8 +618,7 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public boolean sendPublicMessage(String message) {
-        // TODO - Step 2 - implement it. Reuse sendTextMessage() method.
-        return false;
+        return sendTextMessage("msg", null, message, null);
     }
 
     /**
@@ -201,36 +632,46 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public boolean sendPrivateMessage(String recipient, String message) {
-        // TODO - Step 6 - implement it. Reuse sendTextMessage() method.
-        return false;
+        return sendTextMessage("privmsg", recipient, message, null);
     }
 
     /**
-     * Wait for one server's response: one line of text.
-     * Close connection if an error occurred.
+     * Send a public message to all the recipients, without waiting for the
+     * server's reply.
      *
-     * @return the received command, null on error (socket closed)
+     * @param message
+     * @return Completed when the server confirms or refuses the message
      */
-    private String getOneResponseCommand() {
-        String output = null;
-        try {
-            output = fromServer.readLine();
-            if (output != null) {
-                System.out.println("<<< " + output);
-            } else {
-                // This happens when the connection is closed
-                // Clean the connection on our end
-                disconnect();
-            }
-        } catch (IOException ex) {
-            System.out.println(
-                    "Err while reading server response, socket seems to be closed");
-            lastError = "Server closed socket";
-            disconnect();
-            // Notify the listeners that connection is interrupted
-            onDisconnect();
+    @Override
+    public CompletableFuture<MessageAck> sendPublicMessageAsync(String message) {
+        return sendTextMessageAsync("msg", null, message);
+    }
+
+    /**
+     * Send a private message to a single recipient, without waiting for the
+     * server's reply.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message
+     * @return Completed when the server confirms or refuses the message
+     */
+    @Override
+    public CompletableFuture<MessageAck> sendPrivateMessageAsync(
+            String recipient, String message) {
+        return sendTextMessageAsync("privmsg", recipient, message);
+    }
+
+    /**
+     * Send a public or private message, return a future for the reply.
+     */
+    private CompletableFuture<MessageAck> sendTextMessageAsync(String cmd,
+            String recipient, String message) {
+        CompletableFuture<MessageAck> ack = new CompletableFuture<>();
+        if (!sendTextMessage(cmd, recipient, message, ack)) {
+            ack.completeExceptionally(
+                    new MessageRejectedException(getLastError()));
         }
-        return output;
+        return ack;
     }
 
     /**
@@ -248,15 +689,16 @@ public class TCPClient implements ChatClientFacade {
     }
 
     /**
-     * Start listening for incoming commands from the server on a new background
-     * thread.
+     * Start listening for incoming commands from the server. In blocking mode
+     * this starts a new background thread, in NIO mode the connection is
+     * served by one of the shared selector threads.
      */
     @Override
     public void startListenThread() {
-        Thread t = new Thread(() -> {
-            parseIncomingCommands();
-        });
-        t.start();
+        Transport t = transport;
+        if (t != null) {
+            t.startReading();
+        }
     }
 
     /**
@@ -266,8 +708,25 @@ public class TCPClient implements ChatClientFacade {
      */
     @Override
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
+        listeners.add(new TimedListener(listener,
+                metrics.listenerTime(listener)));
+    }
+
+    /**
+     * Register a listener that runs on its own thread instead of the thread
+     * reading the socket. Events are handed over through a ring buffer, so a
+     * slow listener does not hold up reading from the server. A listener
+     * that falls a whole ring behind misses events, see
+     * getListenerDroppedCount().
+     *
+     * @param listener
+     * @param waitStrategy How the listener's thread waits for new events
+     */
+    public void addListener(ChatListener listener, WaitStrategy waitStrategy) {
+        if (eventBus.subscribe(listener, waitStrategy)) {
+            // Registered once, however many listeners it serves
+            listeners.add(new TimedListener(eventBus,
+                    metrics.listenerTime(eventBus)));
         }
     }
 
@@ -279,37 +738,163 @@ public class TCPClient implements ChatClientFacade {
     @Override
     public void removeListener(ChatListener listener) {
         listeners.remove(listener);
+        if (eventBus.unsubscribe(listener) && !eventBus.hasSubscribers()) {
+            listeners.remove(eventBus);
+            if (eventBus.hasSubscribers()) {
+                // A listener was added at the same time
+                listeners.add(new TimedListener(eventBus,
+                        metrics.listenerTime(eventBus)));
+            }
+        }
     }
 
     /**
-     * Read incoming messages one by one, generate events for the listeners.
-     * This method should be called in a background thread, not in the main
-     * user-interface thread
-     */
-    private void parseIncomingCommands() {
-        while (isConnectionActive()) {
-            // Wait for the next response from the server. 
-            // The next line will block until a response is received. 
-            String line = getOneResponseCommand();
-
-            if (line != null && line.length() > 0) {
-                // Split the line in command and parameters
-                int spacePos = line.indexOf(' ');
-                String cmd;
-                String params;
-                if (spacePos >= 0) {
-                    cmd = line.substring(0, spacePos);
-                    params = line.substring(spacePos + 1);
-                } else {
-                    cmd = line;
-                    params = "";
-                }
+     * Get the statistics of the time events wait before the thread of a
+     * listener added with a WaitStrategy picks them up.
+     *
+     * @param listener The listener
+     * @return Histogram of the handoff latency, null if the listener does not
+     * have its own thread
+     */
+    public LatencyHistogram getListenerHandoffLatency(ChatListener listener) {
+        return eventBus.getHandoffLatency(listener);
+    }
 
-                // TODO - Step 3 and onwards - Handle the different commands
-                // TODO - notify the listeners with necessary events. Reuse the on...() methods below
-                // For example, if server sends a response which means "login successful", 
-                // you should call onLoginResult()
+    /**
+     * Get the number of events a listener added with a WaitStrategy missed
+     * because it fell too far behind. The socket reader never waits for
+     * such a listener.
+     *
+     * @param listener The listener
+     * @return Number of events dropped, -1 if the listener does not have
+     * its own thread
+     */
+    public long getListenerDroppedCount(ChatListener listener) {
+        return eventBus.getDroppedCount(listener);
+    }
+
+    /**
+     * Parse one incoming line, generate events for the listeners. This method
+     * is called on the thread reading the socket, not in the main
+     * user-interface thread.
+     *
+     * The line is seen in place in the socket's read buffer: use the
+     * CommandLine methods to look at the command and parameters, and only
+     * create strings for the parts a listener needs.
+     *
+     * @param line The line received from the server
+     */
+    private void parseIncomingCommands(CommandLine line) {
+        if (line.commandLength() > 0) {
+            dispatcher.dispatch(line);
+        }
+    }
+
+    /**
+     * Split the parameters of a line into words. The words are taken from
+     * the name pool.
+     *
+     * @param line The received line
+     * @return The space-separated parameters, empty array if there are none
+     */
+    private static String[] splitParams(CommandLine line) {
+        int count = 0;
+        int pos = 0;
+        int space;
+        // Count the words first to allocate the array once
+        while ((space = line.indexOfSpace(pos)) >= 0) {
+            if (space > pos) {
+                ++count;
             }
+            pos = space + 1;
+        }
+        if (pos < line.paramsLength()) {
+            ++count;
+        }
+        String[] words = new String[count];
+        int i = 0;
+        pos = 0;
+        while ((space = line.indexOfSpace(pos)) >= 0) {
+            if (space > pos) {
+                words[i++] = NAMES.intern(line, pos, space);
+            }
+            pos = space + 1;
+        }
+        if (pos < line.paramsLength()) {
+            words[i] = NAMES.intern(line, pos, line.paramsLength());
+        }
+        return words;
+    }
+
+    /**
+     * Create the object that handles what the transport receives. Every
+     * connection gets a new one.
+     *
+     * @return The handler
+     */
+    TransportListener createReplyHandler() {
+        return new ServerReplyHandler();
+    }
+
+    /**
+     * Receives lines and connection errors from the transport.
+     */
+    private class ServerReplyHandler implements TransportListener {
+
+        // When the current read started, 0 when not known
+        private long readStart = 0;
+        // Nothing received on this connection yet
+        private boolean firstRead = true;
+
+        @Override
+        public void onBytesReceived(int count) {
+            if (firstRead) {
+                // The users of the last connection are not known to be
+                // online any more
+                roster.clear();
+                firstRead = false;
+            }
+            metrics.bytesReceived.add(count);
+            readStart = System.nanoTime();
+        }
+
+        @Override
+        public void onLineReceived(CommandLine line) {
+            metrics.linesReceived.increment();
+            if (LOG_TRAFFIC) {
+                System.out.println("<<< " + line);
+            }
+            parseIncomingCommands(line);
+        }
+
+        @Override
+        public void onReadComplete() {
+            if (readStart != 0) {
+                metrics.readTime.record(System.nanoTime() - readStart);
+                readStart = 0;
+            }
+            deliverReceivedMessages();
+        }
+
+        @Override
+        public void onTransportClosed(IOException cause) {
+            if (cause != null) {
+                System.out.println(
+                        "Err while reading server response, socket seems to be closed");
+            }
+            lastError = "Server closed socket";
+            ReconnectSupervisor supervisor = reconnectSupervisor;
+            if (supervisor != null && lastHost != null) {
+                // Clean the connection on our end, keep the queued commands
+                connectionLost();
+                onDisconnect();
+                supervisor.connectionLost(TCPClient.this);
+                return;
+            }
+            // Clean the connection on our end
+            disconnect();
+            // Notify the listeners that connection is interrupted
+            onDisconnect();
         }
     }
 
@@ -321,22 +906,54 @@ public class TCPClient implements ChatClientFacade {
      * @param errMsg Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
+        deliverReceivedMessages();
+        for (ChatListener l : listeners.snapshot()) {
             l.onLoginResult(success, errMsg);
         }
     }
 
     /**
-     * Notify listeners that a message is received from the server
+     * Collect a message received from the server. The listeners are notified
+     * about all the messages of one read at once, see
+     * deliverReceivedMessages().
      *
      * @param priv When true, this is a private message
-     * @param sender Username of the sender
-     * @param text Message text
+     * @param line The received line: sender, space, message text
      */
-    private void onMsgReceived(boolean priv, String sender, String text) {
-        TextMessage msg = new TextMessage(sender, priv, text);
-        for (ChatListener l : listeners) {
-            l.onMessageReceived(msg);
+    private void onMsgReceived(boolean priv, CommandLine line) {
+        int space = line.indexOfSpace(0);
+        String sender;
+        String text;
+        // The same few senders write most of the messages: share their names
+        if (space >= 0) {
+            sender = NAMES.intern(line, 0, space);
+            text = line.paramsFrom(space + 1);
+        } else {
+            sender = NAMES.intern(line, 0, line.paramsLength());
+            text = "";
+        }
+        TextMessage message = new TextMessage(sender, priv, text);
+        MessageJournal j = journal;
+        if (j != null) {
+            j.append(message, System.currentTimeMillis());
+        }
+        receivedMessages.add(message);
+    }
+
+    /**
+     * Notify listeners about the messages collected so far, in one batch.
+     * Called at the end of every read, and before any other notification so
+     * that the listeners see the events in the order they arrived.
+     */
+    private void deliverReceivedMessages() {
+        if (receivedMessages.isEmpty()) {
+            return;
+        }
+        List<TextMessage> batch
+                = Collections.unmodifiableList(receivedMessages);
+        receivedMessages = new ArrayList<>();
+        for (ChatListener l : listeners.snapshot()) {
+            l.onMessagesReceived(batch);
         }
     }
 
@@ -346,7 +963,8 @@ public class TCPClient implements ChatClientFacade {
      * @param errMsg Error description returned by the server
      */
     private void onMsgError(String errMsg) {
-        for (ChatListener l : listeners) {
+        deliverReceivedMessages();
+        for (ChatListener l : listeners.snapshot()) {
             l.onMessageError(errMsg);
         }
     }
@@ -357,19 +975,105 @@ public class TCPClient implements ChatClientFacade {
      * @param errMsg
      */
     private void onCmdError(String errMsg) {
-        for (ChatListener l : listeners) {
+        deliverReceivedMessages();
+        for (ChatListener l : listeners.snapshot()) {
             l.onCommandError(errMsg);
         }
     }
 
     /**
-     * Notify listeners that server sent us a list of currently connected users
+     * Notify listeners that server sent us a list of currently connected
+     * users, and about the users who joined or left since the last list.
      *
      * @param users List with usernames
      */
     private void onUsersList(String[] users) {
-        for (ChatListener l : listeners) {
+        String[] sorted = users.clone();
+        Arrays.sort(sorted);
+        // Walk the old and the new list side by side, once
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        Iterator<String> it = roster.iterator();
+        String current = it.hasNext() ? it.next() : null;
+        int i = 0;
+        while (current != null || i < sorted.length) {
+            int diff;
+            if (current == null) {
+                diff = 1;
+            } else if (i == sorted.length) {
+                diff = -1;
+            } else {
+                diff = current.compareTo(sorted[i]);
+            }
+            if (diff < 0) {
+                left.add(current);
+            } else if (diff > 0) {
+                // Skip duplicates in the server's list
+                if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                    joined.add(sorted[i]);
+                }
+            }
+            if (diff <= 0) {
+                current = it.hasNext() ? it.next() : null;
+            }
+            if (diff >= 0) {
+                ++i;
+            }
+        }
+        // One by one: removeAll() may call left.contains() for every user
+        for (String name : left) {
+            roster.remove(name);
+        }
+        roster.addAll(joined);
+        notifyUserChanges(users, joined, left);
+    }
+
+    /**
+     * A user logged in: notify listeners with the updated user list.
+     *
+     * @param username The user who joined
+     */
+    private void onUserJoined(String username) {
+        if (!username.isEmpty() && roster.add(username)) {
+            notifyUserChanges(roster.toArray(new String[roster.size()]),
+                    Collections.singletonList(username),
+                    Collections.<String>emptyList());
+        }
+    }
+
+    /**
+     * A user left: notify listeners with the updated user list.
+     *
+     * @param username The user who left
+     */
+    private void onUserLeft(String username) {
+        if (roster.remove(username)) {
+            notifyUserChanges(roster.toArray(new String[roster.size()]),
+                    Collections.<String>emptyList(),
+                    Collections.singletonList(username));
+        }
+    }
+
+    /**
+     * Notify listeners about the user list and the changes in it.
+     *
+     * @param users The whole list
+     * @param joined Users who joined, sorted
+     * @param left Users who left, sorted
+     */
+    private void notifyUserChanges(String[] users, List<String> joined,
+            List<String> left) {
+        deliverReceivedMessages();
+        String[] joinedArray = joined.toArray(new String[joined.size()]);
+        String[] leftArray = left.toArray(new String[left.size()]);
+        for (ChatListener l : listeners.snapshot()) {
             l.onUserList(users);
+            if (leftArray.length > 0) {
+                l.onUsersLeft(leftArray);
+            }
+            if (joinedArray.length > 0) {
+                l.onUsersJoined(joinedArray);
+            }
         }
     }
 
@@ -380,7 +1084,8 @@ public class TCPClient implements ChatClientFacade {
      * @param commands Commands supported by the server
      */
     private void onHelp(String[] commands) {
-        for (ChatListener l : listeners) {
+        deliverReceivedMessages();
+        for (ChatListener l : listeners.snapshot()) {
             l.onSupportedCommands(commands);
         }
     }
@@ -390,7 +1095,8 @@ public class TCPClient implements ChatClientFacade {
      * Internet error)
      */
     private void onDisconnect() {
-        for (ChatListener l : listeners) {
+        deliverReceivedMessages();
+        for (ChatListener l : listeners.snapshot()) {
             l.onDisconnect();
         }
     }
@@ -0,0 +1,111 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.List;
+import no.ntnu.datakomm.data.TextMessage;
+import no.ntnu.datakomm.facade.ChatListener;
+import no.ntnu.datakomm.metrics.LatencyHistogram;
+
+/**
+ * Wraps a registered listener and records how long each of its callbacks
+ * takes. The ListenerRegistry sees through the wrapper, so the listener is
+ * removed and looked up as itself.
+ */
+final class TimedListener implements ChatListener {
+
+    private final ChatListener listener;
+    private final LatencyHistogram callbackTime;
+
+    /**
+     * @param listener The listener to call
+     * @param callbackTime Where the time of each callback is recorded
+     */
+    TimedListener(ChatListener listener, LatencyHistogram callbackTime) {
+        this.listener = listener;
+        this.callbackTime = callbackTime;
+    }
+
+    /**
+     * @return The wrapped listener
+     */
+    ChatListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return A name for the listener's metrics: its class name
+     */
+    static String nameOf(ChatListener listener) {
+        String name = listener.getClass().getSimpleName();
+        return name.isEmpty() ? listener.getClass().getName() : name;
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        long start = System.nanoTime();
+        listener.onLoginResult(success, errMsg);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onDisconnect() {
+        long start = System.nanoTime();
+        listener.onDisconnect();
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        long start = System.nanoTime();
+        listener.onMessageReceived(message);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        long start = System.nanoTime();
+        listener.onMessagesReceived(messages);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        long start = System.nanoTime();
+        listener.onMessageError(errMsg);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        long start = System.nanoTime();
+        listener.onUserList(usernames);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onUsersJoined(String[] usernames) {
+        long start = System.nanoTime();
+        listener.onUsersJoined(usernames);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onUsersLeft(String[] usernames) {
+        long start = System.nanoTime();
+        listener.onUsersLeft(usernames);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        long start = System.nanoTime();
+        listener.onSupportedCommands(commands);
+        callbackTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        long start = System.nanoTime();
+        listener.onCommandError(errMsg);
+        callbackTime.record(System.nanoTime() - start);
+    }
+}
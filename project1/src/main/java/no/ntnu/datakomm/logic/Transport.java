@@ -0,0 +1,60 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An open connection to the chat server. Hides whether the socket is a
+ * blocking Socket or a non-blocking SocketChannel from the TCPClient.
+ */
+interface Transport {
+
+    /**
+     * Start delivering incoming lines to the listener given when the
+     * transport was opened.
+     */
+    void startReading();
+
+    /**
+     * Send bytes to the server. All the remaining bytes of the buffer are
+     * written with one system call when the socket buffer has room, what does
+     * not fit is copied and sent later. The buffer can be reused once the
+     * method returns.
+     *
+     * @param data The bytes to send, between position and limit
+     * @return true when the bytes were written (or queued for writing), false
+     * when the transport is closed or broken
+     */
+    boolean write(ByteBuffer data);
+
+    /**
+     * Tell whether the caller should write more now. A transport that
+     * queues what the socket does not take returns false while too much is
+     * queued; write() still accepts data then, but the caller should wait
+     * for whenWritable().
+     *
+     * @return False while the transport has too much unsent data
+     */
+    default boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * Run an action once the transport is writable again: right away if it
+     * is writable now, otherwise on the thread that sent the queued data.
+     * The action must be short. Only the last action given is run.
+     *
+     * @param action What to run
+     */
+    default void whenWritable(Runnable action) {
+        action.run();
+    }
+
+    /**
+     * Close the connection. The listener is not notified about closes
+     * requested through this method.
+     *
+     * @throws IOException when the socket could not be closed cleanly
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+
+/**
+ * Receives events from a Transport. The methods are called on the thread that
+ * reads the socket: the per-connection thread in blocking mode, one of the
+ * selector threads in NIO mode.
+ */
+interface TransportListener {
+
+    /**
+     * Bytes were read from the socket. Called before the lines in them are
+     * delivered.
+     *
+     * @param count Number of bytes read
+     */
+    default void onBytesReceived(int count) {
+    }
+
+    /**
+     * One line of text was received from the server.
+     *
+     * @param line The line, without line terminator. Only valid during this
+     * call, the object is reused for the next line.
+     */
+    void onLineReceived(CommandLine line);
+
+    /**
+     * All the complete lines from one read have been delivered. A good
+     * moment to pass on what was collected from them.
+     */
+    void onReadComplete();
+
+    /**
+     * The connection was closed by the remote end or broke.
+     *
+     * @param cause The error, or null when the server closed the socket
+     */
+    void onTransportClosed(IOException cause);
+}
@@ -0,0 +1,20 @@
+package no.ntnu.datakomm.logic;
+
+/**
+ * The way a TCPClient talks to the socket.
+ */
+public enum TransportMode {
+
+    /**
+     * Non-blocking SocketChannel, served by the shared selector threads. Many
+     * clients share a few threads, suitable when running lots of clients in
+     * one JVM.
+     */
+    NIO,
+
+    /**
+     * Classic blocking Socket with one reading thread per connection. Kept as
+     * a fallback.
+     */
+    BLOCKING
+}
@@ -0,0 +1,57 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a listener thread does while it waits for the next event from the
+ * socket reader. The faster strategies react sooner but burn more CPU.
+ */
+public enum WaitStrategy {
+
+    /**
+     * Spin on the CPU. Lowest latency, keeps one core busy.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(int attempt) {
+            // Just check again
+        }
+    },
+
+    /**
+     * Spin for a while, then give the CPU to other threads between checks.
+     */
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            if (attempt > SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+    },
+
+    /**
+     * Spin and yield for a short while, then sleep between checks. Uses
+     * almost no CPU when idle, adds up to PARK_NANOS of latency.
+     */
+    PARK {
+        @Override
+        void idle(int attempt) {
+            if (attempt > 2 * SPIN_TRIES) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (attempt > SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    /**
+     * Wait a little before checking for new events again.
+     *
+     * @param attempt How many times in a row nothing was found
+     */
+    abstract void idle(int attempt);
+}
@@ -0,0 +1,293 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the traffic of a TCPClient to a capture file: every line received
+ * and sent, with a nanosecond timestamp, and the end of every read. A
+ * WireReplay feeds a capture back into a client.
+ *
+ * The file starts with MAGIC and the wall-clock time of the start in
+ * milliseconds (8 bytes). Then one record per event: the type (1 byte), the
+ * nanoseconds since the previous record and, for lines, the length followed
+ * by the bytes of the line without newline, for DROPPED the count. Numbers
+ * are unsigned varints, so a typical record takes the line plus 4 bytes.
+ * Sent lines are recorded once the transport accepted them.
+ *
+ * The reading and writing threads of the client only copy the line and put
+ * it in a queue; a writer thread writes the file. When the writer falls too
+ * far behind, records are dropped rather than slowing the connection down,
+ * and a DROPPED record with the number of missing records takes their place
+ * in the file.
+ */
+public class WireRecorder implements AutoCloseable {
+
+    static final byte[] MAGIC = {'C', 'H', 'A', 'T', 'C', 'A', 'P', '1'};
+    // Record types
+    static final int LINE_RECEIVED = 1;
+    static final int LINE_SENT = 2;
+    static final int READ_END = 3;
+    static final int DROPPED = 4;
+
+    // Records waiting for the writer thread, at most
+    static final int QUEUE_CAPACITY = 65536;
+    // How often the writer checks whether the recorder was closed
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * An event waiting to be written.
+     */
+    private static final class PendingRecord {
+
+        final int type;
+        final long nanos;
+        // The line without newline, null for READ_END
+        final byte[] line;
+        // Records dropped since the one queued before this
+        final long droppedBefore;
+
+        PendingRecord(int type, long nanos, byte[] line, long droppedBefore) {
+            this.type = type;
+            this.nanos = nanos;
+            this.line = line;
+            this.droppedBefore = droppedBefore;
+        }
+    }
+
+    private final BlockingQueue<PendingRecord> queue
+            = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedCount = new AtomicLong();
+    // Dropped records not yet attached to a queued record
+    private final AtomicLong unreportedDrops = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean open = true;
+
+    // Only used by the writer thread (and the constructor)
+    private final OutputStream out;
+    private long lastNanos;
+
+    /**
+     * Create the capture file, replacing it if it exists.
+     *
+     * @param file Where to write the capture
+     * @throws IOException when the file cannot be created
+     */
+    public WireRecorder(Path file) throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+        out.write(MAGIC);
+        long millis = System.currentTimeMillis();
+        for (int i = 56; i >= 0; i -= 8) {
+            out.write((int) (millis >>> i));
+        }
+        lastNanos = System.nanoTime();
+        writer = new Thread(this::runWriter, "chat-wire-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Wrap the listener of a new connection, to record what it receives.
+     */
+    TransportListener tap(TransportListener listener) {
+        return new TransportListener() {
+            @Override
+            public void onBytesReceived(int count) {
+                listener.onBytesReceived(count);
+            }
+
+            @Override
+            public void onLineReceived(CommandLine line) {
+                record(LINE_RECEIVED, Arrays.copyOfRange(line.buffer(),
+                        line.lineStart(), line.lineEnd()));
+                listener.onLineReceived(line);
+            }
+
+            @Override
+            public void onReadComplete() {
+                record(READ_END, null);
+                listener.onReadComplete();
+            }
+
+            @Override
+            public void onTransportClosed(IOException cause) {
+                listener.onTransportClosed(cause);
+            }
+        };
+    }
+
+    /**
+     * Wrap the transport of a new connection, to record what is sent.
+     */
+    Transport tap(Transport transport) {
+        return new Transport() {
+            @Override
+            public void startReading() {
+                transport.startReading();
+            }
+
+            @Override
+            public boolean write(ByteBuffer data) {
+                // The transport moves the position, the bytes stay
+                ByteBuffer written = data.duplicate();
+                if (!transport.write(data)) {
+                    return false;
+                }
+                recordLines(written);
+                return true;
+            }
+
+            @Override
+            public boolean isWritable() {
+                return transport.isWritable();
+            }
+
+            @Override
+            public void whenWritable(Runnable action) {
+                transport.whenWritable(action);
+            }
+
+            @Override
+            public void close() throws IOException {
+                transport.close();
+            }
+        };
+    }
+
+    /**
+     * Record the lines in the buffer, without moving its position. The
+     * buffer may be direct.
+     */
+    private void recordLines(ByteBuffer data) {
+        int start = data.position();
+        int limit = data.limit();
+        for (int i = start; i < limit; ++i) {
+            if (data.get(i) == '\n') {
+                byte[] line = new byte[i - start];
+                ByteBuffer in = data.duplicate();
+                in.position(start);
+                in.get(line);
+                record(LINE_SENT, line);
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Queue an event for the writer thread. Never blocks.
+     *
+     * @param type The record type
+     * @param line The line, not used by the caller afterwards, or null
+     */
+    private void record(int type, byte[] line) {
+        if (!open) {
+            return;
+        }
+        long droppedBefore = unreportedDrops.getAndSet(0);
+        if (!queue.offer(new PendingRecord(type, System.nanoTime(), line,
+                droppedBefore))) {
+            droppedCount.incrementAndGet();
+            unreportedDrops.addAndGet(droppedBefore + 1);
+        }
+    }
+
+    /**
+     * Runs on the writer thread until the recorder is closed and the queue
+     * is empty.
+     */
+    private void runWriter() {
+        List<PendingRecord> batch = new ArrayList<>();
+        try {
+            while (open || !queue.isEmpty()) {
+                PendingRecord first = queue.poll(IDLE_POLL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    write(first);
+                    queue.drainTo(batch);
+                    for (PendingRecord record : batch) {
+                        write(record);
+                    }
+                    batch.clear();
+                }
+            }
+            // Drops after the last queued record
+            long dropped = unreportedDrops.getAndSet(0);
+            if (dropped > 0) {
+                writeDropped(System.nanoTime(), dropped);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Recording must not break the connection: stop recording
+            open = false;
+            queue.clear();
+            System.err.println("Stopped recording traffic: "
+                    + e.getMessage());
+        }
+    }
+
+    private void write(PendingRecord record) throws IOException {
+        if (record.droppedBefore > 0) {
+            writeDropped(record.nanos, record.droppedBefore);
+        }
+        // Events queued by two threads may be a little out of order
+        long delta = Math.max(record.nanos - lastNanos, 0);
+        out.write(record.type);
+        writeVarint(delta);
+        if (record.line != null) {
+            writeVarint(record.line.length);
+            out.write(record.line);
+        }
+        lastNanos += delta;
+    }
+
+    private void writeDropped(long nanos, long count) throws IOException {
+        long delta = Math.max(nanos - lastNanos, 0);
+        out.write(DROPPED);
+        writeVarint(delta);
+        writeVarint(count);
+        lastNanos += delta;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Stop recording, write the queued records and close the file.
+     *
+     * @throws IOException when the file could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    /**
+     * @return Number of records dropped because the writer fell behind
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
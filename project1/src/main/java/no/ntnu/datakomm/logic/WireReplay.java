@@ -0,0 +1,224 @@
+package no.ntnu.datakomm.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the traffic recorded by a WireRecorder back into a TCPClient, as if
+ * the server sent it again: the received lines go through the same parsing
+ * and dispatch as on a live connection, grouped into the same reads, and
+ * reach the client's listeners. The lines the client sent are skipped.
+ * When the recorder had to drop records, the capture says how many, and
+ * the replay reports them.
+ *
+ * The replay runs on the calling thread, at the original speed, faster, or
+ * as fast as possible. The capture is read into memory, so that replaying it
+ * repeatedly measures the client and not the disk.
+ *
+ * Run: java -cp target/classes no.ntnu.datakomm.logic.WireReplay capture
+ * [speed|max]
+ */
+public class WireReplay {
+
+    /**
+     * Replay without waiting between the reads.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final byte[] capture;
+    private final long startMillis;
+    private final long droppedCount;
+
+    /**
+     * Read a capture file.
+     *
+     * @param file The capture
+     * @throws IOException when the file cannot be read or is not a capture
+     */
+    public WireReplay(Path file) throws IOException {
+        capture = Files.readAllBytes(file);
+        int magicLength = WireRecorder.MAGIC.length;
+        if (capture.length < magicLength + 8 || !Arrays.equals(
+                Arrays.copyOf(capture, magicLength), WireRecorder.MAGIC)) {
+            throw new IOException("Not a capture file: " + file);
+        }
+        startMillis = ByteBuffer.wrap(capture, magicLength, 8).getLong();
+        droppedCount = countDropped();
+    }
+
+    /**
+     * Add up the DROPPED records of the capture.
+     */
+    private long countDropped() {
+        long dropped = 0;
+        ByteBuffer in = ByteBuffer.wrap(capture);
+        in.position(WireRecorder.MAGIC.length + 8);
+        while (in.hasRemaining()) {
+            int type = in.get();
+            if (readVarint(in) < 0) {
+                break;
+            }
+            if (type == WireRecorder.READ_END) {
+                continue;
+            }
+            long value = readVarint(in);
+            if (value < 0) {
+                break;
+            }
+            if (type == WireRecorder.DROPPED) {
+                dropped += value;
+            } else if (value <= in.remaining()) {
+                in.position(in.position() + (int) value);
+            } else {
+                break;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return Wall-clock time when the recording started, in milliseconds
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return Number of records the recorder dropped because its writer fell
+     * behind; 0 if the capture is complete
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Replay the received lines into a client. The client does not need to
+     * be connected; its listeners are notified as usual.
+     *
+     * @param client The client
+     * @param speed 1 for the original speed, 2 for twice as fast and so on,
+     * MAX_SPEED for no waiting
+     * @return Number of lines replayed. Lines the recorder dropped are
+     * missing, see getDroppedCount().
+     */
+    public long replay(TCPClient client, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        TransportListener handler = client.createReplyHandler();
+        LineParser parser = new LineParser();
+        ByteBuffer read = ByteBuffer.allocate(SelectorLoop.READ_BUFFER_SIZE);
+        long replayStart = System.nanoTime();
+        long captureNanos = 0;
+        long lines = 0;
+        // Each replay reads the capture with its own position
+        ByteBuffer in = ByteBuffer.wrap(capture);
+        in.position(WireRecorder.MAGIC.length + 8);
+        while (in.hasRemaining()) {
+            int type = in.get();
+            long delta = readVarint(in);
+            if (delta < 0) {
+                // Cut off in the middle of a record
+                break;
+            }
+            captureNanos += delta;
+            if (type == WireRecorder.READ_END) {
+                if (speed != MAX_SPEED) {
+                    waitUntil(replayStart + (long) (captureNanos / speed));
+                }
+                handler.onBytesReceived(read.position());
+                read.flip();
+                parser.parse(read, handler);
+                handler.onReadComplete();
+                read.clear();
+                continue;
+            }
+            if (type == WireRecorder.DROPPED) {
+                // Counted when the capture was read, nothing to replay
+                if (readVarint(in) < 0) {
+                    break;
+                }
+                continue;
+            }
+            long length = readVarint(in);
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            if (type == WireRecorder.LINE_RECEIVED) {
+                if (read.remaining() < length + 1) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                            2 * read.capacity(),
+                            read.position() + (int) length + 1));
+                    read.flip();
+                    larger.put(read);
+                    read = larger;
+                }
+                read.put(capture, in.position(), (int) length)
+                        .put((byte) '\n');
+                ++lines;
+            }
+            in.position(in.position() + (int) length);
+        }
+        if (read.position() > 0) {
+            // The capture ended in the middle of a read
+            handler.onBytesReceived(read.position());
+            read.flip();
+            parser.parse(read, handler);
+            handler.onReadComplete();
+        }
+        return lines;
+    }
+
+    /**
+     * Read an unsigned varint and move the position after it.
+     *
+     * @return The value, -1 when the capture ends before the value does
+     */
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static void waitUntil(long nanos) {
+        long now;
+        while ((now = System.nanoTime()) < nanos) {
+            LockSupport.parkNanos(nanos - now);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: WireReplay capture [speed|max]");
+            System.exit(1);
+        }
+        double speed = args.length < 2 || "max".equals(args[1])
+                ? MAX_SPEED : Double.parseDouble(args[1]);
+        WireReplay replay = new WireReplay(Paths.get(args[0]));
+        if (replay.getDroppedCount() > 0) {
+            System.err.println("The capture is incomplete: "
+                    + replay.getDroppedCount() + " records were dropped");
+        }
+        long start = System.nanoTime();
+        long lines = replay.replay(new TCPClient(), speed);
+        double seconds = (System.nanoTime() - start)
+                / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("Replayed %d lines in %.3f s, %.0f lines/s%n",
+                lines, seconds, lines / seconds);
+    }
+}
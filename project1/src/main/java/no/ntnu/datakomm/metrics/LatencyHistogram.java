@@ -0,0 +1,117 @@
+package no.ntnu.datakomm.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the style
+ * of HdrHistogram: values below 32 are counted exactly, larger values in 16
+ * buckets per power of two, so every reported value is within about 6% of
+ * the real one. Recording is lock-free and allocation-free.
+ */
+public class LatencyHistogram {
+
+    private static final int EXACT = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values up to 2^63 - 1: exact ones, then 16 buckets for bits 5..62
+    private static final int BUCKETS = EXACT + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Record one value.
+     *
+     * @param nanos The latency, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        long max;
+        while (value > (max = maxValue.get())
+                && !maxValue.compareAndSet(max, value)) {
+            // Retry, another thread raised the maximum meanwhile
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (msb - 5) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The highest value that falls in the given bucket
+     */
+    private static long highestValueIn(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int k = bucket - EXACT;
+        int msb = k / SUB_BUCKETS + 5;
+        long sub = k % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << (msb - SUB_BITS);
+        return lowest + (1L << (msb - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return The largest recorded value, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * @return Average of the recorded values, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall.
+     *
+     * @param percentile Between 0 and 100, for example 99.9
+     * @return The value, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0fns p50=%dns p99=%dns "
+                + "p99.9=%dns max=%dns", getCount(), getMean(),
+                getPercentile(50), getPercentile(99), getPercentile(99.9),
+                getMax());
+    }
+}
@@ -0,0 +1,162 @@
+package no.ntnu.datakomm.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and latency histograms, read through JMX or as
+ * text by a MetricsHttpServer.
+ *
+ * Counters are LongAdders: each thread adds to its own cell, so the reading
+ * thread never waits for another thread to count. Code that counts keeps
+ * the LongAdder it got from counter(); looking it up by name is for
+ * registration only.
+ *
+ * Names follow the Prometheus conventions, labels included, for example
+ * chat_commands_received_total{command="msg"}. Histograms are in
+ * nanoseconds and are reported in seconds, as quantiles.
+ */
+public class MetricsRegistry {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES
+            = {"0.5", "0.9", "0.99", "0.999"};
+    private static final double NANOS_PER_SECOND
+            = TimeUnit.SECONDS.toNanos(1);
+
+    // Sorted, so the text output groups the metrics by name
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get a counter, creating it if needed.
+     *
+     * @param name Name of the counter
+     * @return The counter
+     */
+    public LongAdder counter(String name) {
+        return (LongAdder) metrics.computeIfAbsent(name,
+                n -> new LongAdder());
+    }
+
+    /**
+     * Get a histogram, creating it if needed.
+     *
+     * @param name Name of the histogram
+     * @return The histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return (LatencyHistogram) metrics.computeIfAbsent(name,
+                n -> new LatencyHistogram());
+    }
+
+    /**
+     * Report a histogram that already exists under a name.
+     *
+     * @param name Name of the histogram
+     * @param histogram The histogram, in nanoseconds
+     */
+    public void register(String name, LatencyHistogram histogram) {
+        metrics.put(name, histogram);
+    }
+
+    /**
+     * Report a value that is read when the metrics are read, for example
+     * the length of a queue.
+     *
+     * @param name Name of the gauge
+     * @param value Gives the current value
+     */
+    public void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    /**
+     * Read all the metrics. A histogram gives one value per quantile, plus
+     * its count and sum.
+     *
+     * @return Current values by name, sorted by name
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof LongAdder) {
+                values.put(name, ((LongAdder) metric).sum());
+            } else if (metric instanceof LongSupplier) {
+                values.put(name, ((LongSupplier) metric).getAsLong());
+            } else {
+                LatencyHistogram h = (LatencyHistogram) metric;
+                for (int i = 0; i < PERCENTILES.length; ++i) {
+                    values.put(withLabel(name, "quantile", QUANTILES[i]),
+                            h.getPercentile(PERCENTILES[i])
+                            / NANOS_PER_SECOND);
+                }
+                values.put(withSuffix(name, "_count"), h.getCount());
+                values.put(withSuffix(name, "_sum"),
+                        h.getMean() * h.getCount() / NANOS_PER_SECOND);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Add a label to a name that may have labels already.
+     */
+    private static String withLabel(String name, String label, String value) {
+        String pair = label + "=\"" + value + "\"";
+        int brace = name.indexOf('{');
+        if (brace < 0) {
+            return name + "{" + pair + "}";
+        }
+        return name.substring(0, name.length() - 1) + "," + pair + "}";
+    }
+
+    /**
+     * Add a suffix to the name part of a name that may have labels.
+     */
+    private static String withSuffix(String name, String suffix) {
+        int brace = name.indexOf('{');
+        if (brace < 0) {
+            return name + suffix;
+        }
+        return name.substring(0, brace) + suffix + name.substring(brace);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format: one "name value"
+     * line each.
+     *
+     * @return The text
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            text.append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Make the metrics readable through JMX, for example in JConsole.
+     *
+     * @param objectName Name of the MBean, for example
+     * "no.ntnu.datakomm:type=ChatClient"
+     * @return The name the MBean was registered with
+     * @throws JMException when the name is taken or not valid
+     */
+    public ObjectName registerMBean(String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new MetricsMBean(this), name);
+        return name;
+    }
+}
@@ -0,0 +1,138 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import no.ntnu.datakomm.data.TextMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries with several terms over the in-memory part, frozen segments and
+ * merged segments, in memory and saved to a directory.
+ */
+public class MessageIndexTest {
+
+    private static final int SEGMENT = MessageIndex.FLUSH_MESSAGES;
+    private static final long MERGE_TIMEOUT_MILLIS = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long positionOf(int i) {
+        return 1000 + 37L * i;
+    }
+
+    /**
+     * Message i is from Alice when i is even, and has the words "w" + i % 3,
+     * "x" + i % 5 and "common".
+     */
+    private static void addMessages(MessageIndex index, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            String sender = i % 2 == 0 ? "Alice" : "bob";
+            index.add(positionOf(i), new TextMessage(sender, false,
+                    "W" + i % 3 + ", x" + i % 5 + " common!"));
+        }
+    }
+
+    /**
+     * @return Positions of the newest matching messages, newest first
+     */
+    private static long[] expected(int count, int limit, IntPredicate match) {
+        long[] positions = new long[limit];
+        int found = 0;
+        for (int i = count - 1; i >= 0 && found < limit; --i) {
+            if (match.test(i)) {
+                positions[found++] = positionOf(i);
+            }
+        }
+        return Arrays.copyOf(positions, found);
+    }
+
+    private static void awaitSegments(MessageIndex index, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MERGE_TIMEOUT_MILLIS;
+        while (index.getSegmentCount() != count) {
+            assertTrue("Segments not merged",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Check the queries against all the messages from 0 to count.
+     */
+    private static void assertQueries(MessageIndex index, int count) {
+        assertArrayEquals(expected(count, count, i -> i % 3 == 1
+                && i % 5 == 2), index.search("w1 X2", count));
+        assertArrayEquals(expected(count, count, i -> i % 2 == 0
+                && i % 3 == 1 && i % 5 == 2),
+                index.search("sender:alice w1 x2", count));
+        assertArrayEquals(expected(count, 10, i -> i % 2 == 1
+                && i % 5 == 4), index.search("x4 sender:BOB", 10));
+        assertArrayEquals(expected(count, 100, i -> true),
+                index.search("common", 100));
+        assertEquals(0, index.search("w1 missing", count).length);
+        assertEquals(0, index.search("sender:carol common", count).length);
+    }
+
+    @Test
+    public void queriesSpanTheLivePartAndFrozenSegments() {
+        MessageIndex index = new MessageIndex();
+        int count = SEGMENT + 1000;
+        addMessages(index, 0, count);
+        assertEquals(1, index.getSegmentCount());
+        assertEquals(count, index.getMessageCount());
+        assertQueries(index, count);
+        // Few enough to come from the live part alone, and enough to need
+        // the frozen segment too
+        assertArrayEquals(expected(count, 30, i -> i % 15 == 7),
+                index.search("w1 x2", 30));
+        assertArrayEquals(expected(count, 200, i -> i % 15 == 7),
+                index.search("w1 x2", 200));
+        index.close();
+    }
+
+    @Test
+    public void queriesAfterSegmentsAreMergedInMemory()
+            throws InterruptedException {
+        MessageIndex index = new MessageIndex();
+        int frozen = MessageIndex.MERGE_FACTOR + 1;
+        int count = frozen * SEGMENT + 10;
+        addMessages(index, 0, count);
+        // MERGE_FACTOR segments merged into one, the last one on its own
+        awaitSegments(index, 2);
+        assertEquals(count, index.getMessageCount());
+        assertQueries(index, count);
+        index.close();
+    }
+
+    @Test
+    public void queriesAfterSegmentsAreMergedOnDisk()
+            throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+        MessageIndex index = new MessageIndex(directory);
+        int count = (MessageIndex.MERGE_FACTOR + 1) * SEGMENT;
+        addMessages(index, 0, count);
+        awaitSegments(index, 2);
+        assertQueries(index, count);
+        index.close();
+
+        // Mapped again from the saved segments
+        MessageIndex reopened = new MessageIndex(directory);
+        assertEquals(2, reopened.getSegmentCount());
+        assertEquals(count, reopened.getMessageCount());
+        assertQueries(reopened, count);
+        // Messages already in a saved segment are not indexed twice
+        addMessages(reopened, count - 5, count + 5);
+        assertEquals(count + 5, reopened.getMessageCount());
+        assertQueries(reopened, count + 5);
+        reopened.close();
+    }
+}
@@ -0,0 +1,119 @@
+package no.ntnu.datakomm.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.datakomm.data.TextMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Recovery of a journal after a crash, and the lock of its directory.
+ */
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageJournal open(Path directory) throws IOException {
+        return new MessageJournal(directory, MessageJournal.MIN_SEGMENT_SIZE,
+                FsyncPolicy.never());
+    }
+
+    private static List<JournalEntry> readAll(MessageJournal journal)
+            throws IOException {
+        List<JournalEntry> entries = new ArrayList<>();
+        journal.replay(journal.getStartPosition(), entries::add);
+        return entries;
+    }
+
+    @Test
+    public void recoverDiscardsRecordTornInTheMiddle() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageJournal journal = open(directory);
+        journal.append(new TextMessage("alice", false, "first"), 1);
+        journal.append(new TextMessage("bob", true, "second"), 2);
+        journal.append(new TextMessage("alice", false, "third, torn"), 3);
+        journal.close();
+
+        List<JournalEntry> written = readAll(journal);
+        assertEquals(3, written.size());
+        long tornStart = written.get(2).getPosition();
+        long end = journal.getEndPosition();
+        Path segment = journal.segmentPath(0);
+
+        // The leading length reached the disk, the second half of the
+        // record with its trailing length did not
+        long cut = tornStart + (end - tornStart) / 2;
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate((int) (end - cut)), cut);
+        }
+
+        journal = open(directory);
+        assertEquals(tornStart, journal.getEndPosition());
+        List<JournalEntry> recovered = readAll(journal);
+        assertEquals(2, recovered.size());
+        assertEquals("first", recovered.get(0).getMessage().getText());
+        assertEquals("second", recovered.get(1).getMessage().getText());
+
+        // New records go where the torn one was
+        journal.append(new TextMessage("carol", false, "after"), 4);
+        journal.close();
+        journal = open(directory);
+        List<JournalEntry> reopened = readAll(journal);
+        journal.close();
+        assertEquals(3, reopened.size());
+        assertEquals(tornStart, reopened.get(2).getPosition());
+        assertEquals("after", reopened.get(2).getMessage().getText());
+        assertEquals(4, reopened.get(2).getTimestampMillis());
+    }
+
+    @Test
+    public void recoverDiscardsRecordWithBadTrailer() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageJournal journal = open(directory);
+        journal.append(new TextMessage("alice", false, "kept"), 1);
+        journal.append(new TextMessage("bob", false, "lost"), 2);
+        journal.close();
+        long end = journal.getEndPosition();
+        long lastStart = readAll(journal).get(1).getPosition();
+
+        try (FileChannel channel = FileChannel.open(journal.segmentPath(0),
+                StandardOpenOption.WRITE)) {
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            trailer.putInt(12345).flip();
+            channel.write(trailer, end - MessageJournal.TRAILER_SIZE);
+        }
+
+        journal = open(directory);
+        List<JournalEntry> recovered = readAll(journal);
+        journal.close();
+        assertEquals(lastStart, journal.getEndPosition());
+        assertEquals(1, recovered.size());
+        assertEquals("kept", recovered.get(0).getMessage().getText());
+    }
+
+    @Test
+    public void directoryIsUsedByOneJournalAtATime() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageJournal journal = open(directory);
+        try {
+            open(directory).close();
+            fail("Opened a journal whose directory is in use");
+        } catch (IOException expected) {
+            // The first journal holds the lock
+        }
+        journal.close();
+        // Released on close
+        open(directory).close();
+    }
+}
@@ -0,0 +1,102 @@
+package no.ntnu.datakomm.history;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The varint encoding of the gaps between positions, and storing a list.
+ */
+public class PostingListTest {
+
+    private static long[] roundTrip(long[] positions, int count) {
+        PostingList list = PostingList.encode(positions, count);
+        assertEquals(count, list.getCount());
+        return Arrays.copyOf(list.decode(null), count);
+    }
+
+    @Test
+    public void gapsAtTheVarintByteBoundaries() {
+        // Each gap needs one byte more than the one before
+        long[] gaps = {0, 127, 128, 16383, 16384, 2097151, 2097152,
+            (1L << 35) - 1, 1L << 35, (1L << 56) - 1, 1L << 56,
+            1L << 62};
+        long[] positions = new long[gaps.length];
+        long position = 0;
+        for (int i = 0; i < gaps.length; ++i) {
+            position += gaps[i];
+            positions[i] = position;
+        }
+        assertArrayEquals(positions, roundTrip(positions, positions.length));
+    }
+
+    @Test
+    public void largestPositions() {
+        long[] positions = {1, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        assertArrayEquals(positions, roundTrip(positions, 3));
+        PostingList single = PostingList.encode(
+                new long[]{Long.MAX_VALUE}, 1);
+        assertEquals(Long.MAX_VALUE, single.decode(null)[0]);
+        // The first gap is the whole position: 63 bits in 9 bytes
+        assertEquals(9, single.getSizeInBytes());
+    }
+
+    @Test
+    public void closePositionsTakeOneByteEach() {
+        long[] positions = new long[1000];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = 10 + 100L * i;
+        }
+        PostingList list = PostingList.encode(positions, positions.length);
+        assertEquals(positions.length, list.getSizeInBytes());
+        assertEquals(positions[positions.length - 1], list.getLast());
+        assertArrayEquals(positions, list.decode(null));
+    }
+
+    @Test
+    public void encodesOnlyTheGivenCount() {
+        long[] positions = {5, 6, 7, 8, 9};
+        assertArrayEquals(new long[]{5, 6, 7}, roundTrip(positions, 3));
+        assertEquals(7, PostingList.encode(positions, 3).getLast());
+
+        PostingList empty = PostingList.encode(positions, 0);
+        assertEquals(0, empty.getCount());
+        assertEquals(-1, empty.getLast());
+        assertEquals(0, empty.getSizeInBytes());
+    }
+
+    @Test
+    public void decodeReusesALargeEnoughArray() {
+        PostingList list = PostingList.encode(new long[]{3, 4}, 2);
+        long[] into = new long[4];
+        assertSame(into, list.decode(into));
+        assertEquals(3, into[0]);
+        assertEquals(4, into[1]);
+        long[] small = new long[1];
+        long[] decoded = list.decode(small);
+        assertFalse(decoded == small);
+        assertArrayEquals(new long[]{3, 4}, decoded);
+    }
+
+    @Test
+    public void writeToAndReadFrom() {
+        long[] positions = {0, 1, 300, 70000, 1L << 40};
+        PostingList list = PostingList.encode(positions, positions.length);
+        ByteBuffer buffer = ByteBuffer.allocate(list.getStoredSize() + 3);
+        buffer.put((byte) 1);
+        list.writeTo(buffer);
+        assertEquals(1 + list.getStoredSize(), buffer.position());
+        buffer.flip();
+        buffer.get();
+        PostingList read = PostingList.readFrom(buffer);
+        assertEquals(1 + list.getStoredSize(), buffer.position());
+        assertEquals(positions.length, read.getCount());
+        assertEquals(1L << 40, read.getLast());
+        assertArrayEquals(positions, read.decode(null));
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order, capacity and reuse of the slots, and many producers at once.
+ */
+public class BoundedMpscQueueTest {
+
+    @Test
+    public void pollsInOfferOrder() {
+        BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(8);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(5, queue.size());
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(5);
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+
+        BoundedMpscQueue<Integer> exact = new BoundedMpscQueue<>(4);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(exact.offer(i));
+        }
+        assertFalse(exact.offer(4));
+    }
+
+    @Test
+    public void slotsAreReusedAfterWrapAround() {
+        BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(4);
+        int next = 0;
+        int expected = 0;
+        // Many rounds, keeping the queue between empty and full
+        for (int round = 0; round < 1000; ++round) {
+            while (queue.offer(next)) {
+                ++next;
+            }
+            assertEquals(4, queue.size());
+            int take = 1 + round % 4;
+            for (int i = 0; i < take; ++i) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+        }
+        while (!queue.isEmpty()) {
+            assertEquals(Integer.valueOf(expected++), queue.poll());
+        }
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void keepsTheOrderOfEveryProducer() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100000;
+        BoundedMpscQueue<long[]> queue = new BoundedMpscQueue<>(64);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            long id = p;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    long[] element = {id, i};
+                    while (!queue.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        int[] nextOf = new int[producers];
+        int received = 0;
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (received < producers * perProducer) {
+            long[] element = queue.poll();
+            if (element == null) {
+                assertTrue("Timed out", System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) element[0];
+            assertEquals(nextOf[producer]++, element[1]);
+            ++received;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(queue.poll());
+        for (int count : nextOf) {
+            assertEquals(perProducer, count);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package no.ntnu.datakomm.logic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every known command reaches its own handler, with the cheap hash and with
+ * the full hash used when commands collide; anything else reaches the
+ * fallback handler.
+ */
+public class CommandDispatcherTest {
+
+    private static final String UNKNOWN = "?";
+
+    private final List<String> calls = new ArrayList<>();
+
+    private CommandDispatcher dispatcherFor(String... commands) {
+        Map<String, CommandHandler> handlers = new LinkedHashMap<>();
+        for (String command : commands) {
+            handlers.put(command, line -> calls.add(command));
+        }
+        return new CommandDispatcher(handlers, line -> calls.add(UNKNOWN));
+    }
+
+    private static CommandLine line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        CommandLine line = new CommandLine();
+        line.set(bytes, 0, bytes.length);
+        return line;
+    }
+
+    /**
+     * Dispatch the line and return the command whose handler was called.
+     */
+    private String dispatch(CommandDispatcher dispatcher, String text) {
+        calls.clear();
+        dispatcher.dispatch(line(text));
+        assertEquals(1, calls.size());
+        return calls.get(0);
+    }
+
+    @Test
+    public void protocolCommandsUseTheCheapHash() {
+        String[] commands = {"loginok", "loginerr", "msg", "privmsg",
+            "msgok", "msgerr", "cmderr", "users", "supported", "joined",
+            "left", "pong"};
+        CommandDispatcher dispatcher = dispatcherFor(commands);
+        assertFalse(dispatcher.usesFullHash());
+        for (String command : commands) {
+            assertEquals(command, dispatch(dispatcher, command));
+            assertEquals(command, dispatch(dispatcher, command + " a b c"));
+        }
+    }
+
+    @Test
+    public void unknownCommandsGoToTheFallback() {
+        CommandDispatcher dispatcher = dispatcherFor("loginok", "msg",
+                "users");
+        // Same length, first and last byte as a known command
+        assertEquals(UNKNOWN, dispatch(dispatcher, "mxg hello"));
+        assertEquals(UNKNOWN, dispatch(dispatcher, "logxxok"));
+        // Prefix and extension of a known command
+        assertEquals(UNKNOWN, dispatch(dispatcher, "ms"));
+        assertEquals(UNKNOWN, dispatch(dispatcher, "msgs"));
+        assertEquals(UNKNOWN, dispatch(dispatcher, "x"));
+        assertEquals("msg", dispatch(dispatcher, "msg"));
+    }
+
+    @Test
+    public void collidingCommandsFallBackToTheFullHash() {
+        // Same length, first and last byte: the cheap hash cannot tell them
+        // apart
+        CommandDispatcher dispatcher = dispatcherFor("msg", "mag", "mug",
+                "users", "unders");
+        assertTrue(dispatcher.usesFullHash());
+        assertEquals("msg", dispatch(dispatcher, "msg hello"));
+        assertEquals("mag", dispatch(dispatcher, "mag"));
+        assertEquals("mug", dispatch(dispatcher, "mug"));
+        assertEquals("users", dispatch(dispatcher, "users a"));
+        assertEquals("unders", dispatch(dispatcher, "unders"));
+        assertEquals(UNKNOWN, dispatch(dispatcher, "mig"));
+        assertEquals(UNKNOWN, dispatch(dispatcher, "user"));
+    }
+
+    @Test
+    public void manyCommandsGetSlotsOfTheirOwn() {
+        String[] commands = new String[300];
+        for (int i = 0; i < commands.length; ++i) {
+            commands[i] = "cmd" + i;
+        }
+        CommandDispatcher dispatcher = dispatcherFor(commands);
+        assertTrue(dispatcher.usesFullHash());
+        for (String command : commands) {
+            assertEquals(command, dispatch(dispatcher, command + " x"));
+        }
+        assertEquals(UNKNOWN, dispatch(dispatcher, "cmd300"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyCommandIsRejected() {
+        dispatcherFor("msg", "");
+    }
+}
@@ -0,0 +1,109 @@
+package no.ntnu.datakomm.logic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Claiming slots around the ring, and the consumers holding the producer
+ * back.
+ */
+public class EventRingTest {
+
+    /**
+     * Claim and publish slots until the ring is full.
+     *
+     * @return Number of slots claimed
+     */
+    private static int fill(EventRing ring) {
+        int claimed = 0;
+        long sequence;
+        while ((sequence = ring.tryNext()) >= 0) {
+            ring.publish(sequence);
+            ++claimed;
+        }
+        return claimed;
+    }
+
+    @Test
+    public void slowestConsumerGatesTheProducer() {
+        EventRing ring = new EventRing(4);
+        AtomicLong fast = ring.addConsumer();
+        AtomicLong slow = ring.addConsumer();
+        assertEquals(-1, fast.get());
+
+        assertEquals(4, fill(ring));
+        assertEquals(3, ring.getCursor());
+
+        // Only the slowest consumer frees slots
+        fast.set(3);
+        assertEquals(-1, ring.tryNext());
+        slow.set(1);
+        assertEquals(2, fill(ring));
+        assertEquals(5, ring.getCursor());
+        slow.set(5);
+        fast.set(5);
+        assertEquals(4, fill(ring));
+        assertEquals(9, ring.getCursor());
+    }
+
+    @Test
+    public void sequencesWrapAroundTheSameSlots() {
+        EventRing ring = new EventRing(4);
+        AtomicLong consumer = ring.addConsumer();
+        ChatEvent[] first = new ChatEvent[4];
+        for (int i = 0; i < 4; ++i) {
+            first[i] = ring.get(ring.tryNext());
+        }
+        for (int i = 0; i < 4; ++i) {
+            assertNotSame(first[(i + 1) % 4], first[i]);
+        }
+        ring.publish(3);
+        consumer.set(3);
+        for (long sequence = 4; sequence < 100; ++sequence) {
+            assertEquals(sequence, ring.tryNext());
+            assertSame(first[(int) sequence % 4], ring.get(sequence));
+            ring.publish(sequence);
+            consumer.set(sequence);
+        }
+    }
+
+    @Test
+    public void sizeIsRoundedUpToAPowerOfTwo() {
+        EventRing ring = new EventRing(5);
+        ring.addConsumer();
+        assertEquals(8, fill(ring));
+    }
+
+    @Test
+    public void removedConsumerNoLongerGates() {
+        EventRing ring = new EventRing(4);
+        AtomicLong stuck = ring.addConsumer();
+        assertEquals(4, fill(ring));
+        ring.removeConsumer(stuck);
+        assertEquals(4, ring.tryNext());
+
+        // Without consumers the producer never waits
+        EventRing free = new EventRing(4);
+        for (long sequence = 0; sequence < 20; ++sequence) {
+            assertEquals(sequence, free.tryNext());
+            free.publish(sequence);
+        }
+    }
+
+    @Test
+    public void newConsumerStartsAfterThePublishedEvents() {
+        EventRing ring = new EventRing(4);
+        ring.publish(ring.tryNext());
+        ring.publish(ring.tryNext());
+        AtomicLong late = ring.addConsumer();
+        assertEquals(1, late.get());
+        // The late consumer has seen nothing yet, but gates from here
+        assertEquals(4, fill(ring));
+        late.set(3);
+        assertEquals(2, fill(ring));
+    }
+}
@@ -0,0 +1,108 @@
+package no.ntnu.datakomm.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which bucket a value lands in, and the percentiles read from the buckets.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 32; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(32, histogram.getCount());
+        assertEquals(31, histogram.getMax());
+        assertEquals(15.5, histogram.getMean(), 1e-9);
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(15, histogram.getPercentile(50));
+        assertEquals(23, histogram.getPercentile(75));
+        assertEquals(31, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(10);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void largerValuesAreWithinTheBucketWidth() {
+        for (long value = 32; value < 1L << 40; value += 1 + value / 7) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            // A larger maximum, so the percentile is not clamped to it
+            histogram.record(Long.MAX_VALUE / 2);
+            long reported = histogram.getPercentile(50);
+            assertTrue(value + " reported as " + reported,
+                    reported >= value && reported - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void bucketEdges() {
+        // 32 to 33 share a bucket, 34 starts the next one
+        assertEquals(33, percentileOfOne(32));
+        assertEquals(33, percentileOfOne(33));
+        assertEquals(35, percentileOfOne(34));
+        // Powers of two start a bucket, the one below ends one
+        assertEquals(1023, percentileOfOne(1023));
+        assertEquals(1024 + 63, percentileOfOne(1024));
+        assertEquals(1023, percentileOfOne(992));
+    }
+
+    private static long percentileOfOne(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        histogram.record(Long.MAX_VALUE / 2);
+        return histogram.getPercentile(50);
+    }
+
+    @Test
+    public void percentileIsClampedToTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        // 1000 is in the bucket 992..1023
+        assertEquals(1000, histogram.getPercentile(100));
+        assertEquals(1000, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesOfAWideRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean(), 1e-6);
+        assertWithin(500_000, histogram.getPercentile(50));
+        assertWithin(990_000, histogram.getPercentile(99));
+        assertWithin(999_000, histogram.getPercentile(99.9));
+        assertEquals(1_000_000, histogram.getPercentile(100));
+    }
+
+    private static void assertWithin(long expected, long reported) {
+        assertTrue(expected + " reported as " + reported,
+                reported >= expected && reported - expected <= expected / 16);
+    }
+}